@@ -4,20 +4,30 @@ import main.controller.network.Authenticator;
 import main.gui.Observer;
 import main.model.Pair;
 import main.model.PeerInfo;
+import main.model.QueryInfo;
 import main.controller.network.Broker;
 import main.controller.message.MessageSender;
 import main.model.message.request.*;
+import main.model.message.request.query.PrefixMessage;
 import main.model.message.request.query.QueryMessage;
+import main.model.message.request.query.RangeMessage;
 import main.model.message.request.query.SearchMessage;
 import main.model.message.request.query.SubMessage;
 import main.model.message.response.*;
+import main.model.message.response.query.PrefixHitMessage;
 import main.model.message.response.query.QueryHitMessage;
+import main.model.message.response.query.RangeHitMessage;
 import main.model.message.response.query.SearchHitMessage;
 import main.model.message.response.query.SubHitMessage;
 import main.model.neighbour.Host;
 import main.model.neighbour.Neighbour;
+import main.model.timelines.Durability;
+import main.model.timelines.MerkleTree;
 import main.model.timelines.Post;
+import main.model.timelines.SearchQuery;
+import main.model.timelines.SearchResult;
 import main.model.timelines.Timeline;
+import main.model.timelines.TimelineDelta;
 import main.model.timelines.TimelineInfo;
 import org.zeromq.ZContext;
 import org.zeromq.ZMQ;
@@ -25,6 +35,7 @@ import org.zeromq.ZMQ;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.security.PrivateKey;
+import java.time.LocalTime;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.IntStream;
@@ -40,6 +51,8 @@ public class Peer implements Serializable {
     // Minimun number of neighbours necessary to be considered a super peers
     public static final int SP_MIN = 5;
     public static final int MAX_SUBS = 3;
+    public static final int SYNC_DELAY = 5000;
+    public static final int EXPIRE_DELAY = 1000;
 
     // Model/Data members
     private final PeerInfo peerInfo;
@@ -54,14 +67,24 @@ public class Peer implements Serializable {
     private ScheduledFuture<?> pingNeighFuture;
     private ScheduledFuture<?> addNeighFuture;
     private ScheduledFuture<?> pingSubsFuture;
+    private ScheduledFuture<?> syncFuture;
+    private ScheduledFuture<?> expireFuture;
 
 
     // CALL PEER WITH PASSWORD != "" TO REGISTER
     public Peer(String username, InetAddress address, int capacity) {
+        this(username, address, capacity, new TimelineInfo(username, capacity));
+    }
+
+    public Peer(String username, InetAddress address, int capacity, Durability durability) {
+        this(username, address, capacity, new TimelineInfo(username, capacity, durability));
+    }
+
+    private Peer(String username, InetAddress address, int capacity, TimelineInfo timelineInfo) {
         this.context = new ZContext();
         this.authenticator = new Authenticator(context);
         this.broker = new Broker(context, address, authenticator);
-        this.peerInfo = new PeerInfo(username, address, capacity, broker.getSocketInfo());
+        this.peerInfo = new PeerInfo(username, address, capacity, timelineInfo, broker.getSocketInfo());
         this.sender = new MessageSender(peerInfo, MAX_RETRY, context);
         this.broker.setSender(sender);
         this.broker.setPeerInfo(peerInfo);
@@ -149,64 +172,216 @@ public class Peer implements Serializable {
                 0, ADDNEIGH_DELAY, TimeUnit.MILLISECONDS);
         pingSubsFuture = scheduler.scheduleWithFixedDelay(this::pingSubs,
                 0, PINGSUBS_DELAY, TimeUnit.MILLISECONDS);
+        syncFuture = scheduler.scheduleWithFixedDelay(this::syncNeighbour,
+                SYNC_DELAY, SYNC_DELAY, TimeUnit.MILLISECONDS);
+        expireFuture = scheduler.scheduleWithFixedDelay(this.peerInfo.getTimelineInfo()::cleanup,
+                EXPIRE_DELAY, EXPIRE_DELAY, TimeUnit.MILLISECONDS);
     }
 
     public void cancelHooks() {
         if (pingNeighFuture != null) pingNeighFuture.cancel(false);
         if (addNeighFuture != null) addNeighFuture.cancel(false);
         if (pingSubsFuture != null) pingSubsFuture.cancel(false);
+        if (syncFuture != null) syncFuture.cancel(false);
+        if (expireFuture != null) expireFuture.cancel(false);
     }
 
     public void stop() {
         this.broker.stop();
         this.authenticator.close();
         this.cancelHooks();
+        this.peerInfo.getTimelineInfo().close();
         this.context.close();
         this.peerInfo.notifyStop();
     }
 
     public Timeline requestTimeline(String username) {
+        // Attach to an identical lookup that is already in flight instead of flooding the network again
+        QueryInfo queryInfo = peerInfo.getQueryInfo();
+        CompletableFuture<Timeline> lookup = new CompletableFuture<>();
+        CompletableFuture<Timeline> inFlight = queryInfo.startLocalLookup(username, lookup);
+        if (inFlight != null)
+            return inFlight.join();
+        if (queryInfo.isKnownMiss(username)) { // Got no hit recently, don't flood again
+            queryInfo.finishLocalLookup(username, lookup, null);
+            return null;
+        }
+
+        Timeline result = null;
+        try {
+            result = this.lookupTimeline(username);
+        } finally {
+            queryInfo.finishLocalLookup(username, lookup, result);
+        }
+        return result;
+    }
+
+    private Timeline lookupTimeline(String username) {
         List<Neighbour> neighbours = peerInfo.getNeighbours().stream().toList();
         if (neighbours.size() == 0)
             return null;
 
-        MessageRequest request = new QueryMessage(username, this.peerInfo);
+        // send the version of our copy, so that responders only send what changed since then
+        Timeline cached = this.peerInfo.getTimelineInfo().getTimeline(username);
+        MessageRequest request = QueryMessage.withVersion(username, this.peerInfo,
+                cached == null ? QueryMessage.NO_VERSION : cached.getVersion());
         Future<List<MessageResponse>> responseFuture = this.sendReqNeighbours(request, neighbours);
         List<MessageResponse> responses = receiveHitNeighbours(request, responseFuture);
 
-        if (responses != null && !responses.isEmpty()) {
-            // select the most recent timeline
-            List<Timeline> timelines = responses.stream().map(m -> ((QueryHitMessage) m).getTimeline()).toList();
-            Timeline most_recent = timelines.stream().max(Timeline::compareTo).get();
+        // known misses answered by other peers are not hits
+        List<QueryHitMessage> hits = responses == null ? new ArrayList<>() : responses.stream()
+                .filter(m -> m.getType().equals(QueryHitMessage.type))
+                .map(m -> (QueryHitMessage) m).toList();
+
+        if (!hits.isEmpty()) {
+            // select the most recent timeline, not modified hits leave us with our copy
+            long cachedVersion = cached == null ? QueryMessage.NO_VERSION : cached.getVersion();
+            QueryHitMessage most_recent = hits.stream().max(Comparator.comparingLong(
+                    hit -> hit.isNotModified() ? cachedVersion : hit.getVersion())).get();
             // save requested timeline
-            this.addTimeline(most_recent);
+            Timeline timeline = this.saveTimeline(most_recent, cached);
+            this.peerInfo.getQueryInfo().removeMiss(username);
 
-            return most_recent;
+            return timeline;
         }
+        this.peerInfo.getQueryInfo().addMiss(username);
         return null;
     }
 
+    private Timeline saveTimeline(QueryHitMessage hit, Timeline cached) {
+        if (hit.isNotModified())
+            return cached;
+
+        if (hit.isDelta()) { // apply changes in place
+            Timeline updated = this.peerInfo.getTimelineInfo().applyDelta(hit.getDelta());
+            if (updated == null)
+                return cached;
+
+            if (updated.hasSignature() && peerInfo.isAuth())
+                updated.verifySignature(authenticator.requestPublicKey(updated.getUsername()));
+            else
+                updated.setVerification(false);
+            return updated;
+        }
+
+        this.addTimeline(hit.getTimeline());
+        return hit.getTimeline();
+    }
+
     public Set<Post> requestSearch(String search_str) {
+        return this.requestSearch(search_str, SearchMessage.LIMIT);
+    }
+
+    // Best posts for the search among ours and every responder's, best first
+    public Set<Post> requestSearch(String search_str, int limit) {
         // see our posts that correspond to the search
-        List<Post> posts = this.peerInfo.getTimelineInfo().getRelatedPosts(search_str);
+        TimelineInfo timelineInfo = this.peerInfo.getTimelineInfo();
+        SearchQuery query = SearchQuery.parse(search_str);
+        List<SearchResult> results = timelineInfo.search(query, limit);
 
-        // get neighbours to send request to
-        List<Neighbour> neighbours = peerInfo.getNeighbours().stream().toList();
+        // get neighbours to send request to, the ones whose terms may answer the query
+        List<Neighbour> neighbours = peerInfo.getNeighboursWithTerms(query).stream().toList();
         if (neighbours.size() == 0)
-            return new HashSet<>(posts);
+            return topPosts(results, limit);
 
         // send request to neighbours
-        MessageRequest request = new SearchMessage(search_str, this.peerInfo);
+        MessageRequest request = new SearchMessage(search_str, this.peerInfo, limit);
         Future<List<MessageResponse>> responseFuture = this.sendReqNeighbours(request, neighbours);
 
         // receive responses from neighbours
         List<MessageResponse> responses = receiveHitNeighbours(request, responseFuture);
         if (responses == null) return null;
 
-        // get all posts from responses
-        for (MessageResponse msg : responses)
-            posts.addAll(((SearchHitMessage) msg).getPosts());
-        return new HashSet<>(posts);
+        // get all posts from responses, a post found in several copies of a timeline is taken from the most recent
+        Map<String, SearchResult> found = new HashMap<>(); // Username:Post id => Result
+        Map<String, LocalTime> freshness = new HashMap<>(); // Username:Post id => Last update of its copy
+        for (SearchResult result : results)
+            addSearchResult(found, freshness, result, timelineInfo.getFreshness(result.getPost().getUsername()));
+        for (MessageResponse msg : responses) {
+            SearchHitMessage hit = (SearchHitMessage) msg;
+            for (SearchResult result : hit.getResults())
+                addSearchResult(found, freshness, result, hit.getFreshness().get(result.getPost().getUsername()));
+        }
+        return topPosts(found.values(), limit);
+    }
+
+    private static void addSearchResult(Map<String, SearchResult> found, Map<String, LocalTime> freshness,
+                                        SearchResult result, LocalTime copyUpdate) {
+        String key = result.getPost().getUsername() + ":" + result.getPost().getId();
+        LocalTime current = freshness.get(key);
+        if (found.containsKey(key) && (copyUpdate == null || (current != null && !copyUpdate.isAfter(current))))
+            return;
+        found.put(key, result);
+        freshness.put(key, copyUpdate);
+    }
+
+    // Merges the results with a heap bounded by the limit, so that it costs the results and not their sort
+    private static Set<Post> topPosts(Collection<SearchResult> results, int limit) {
+        PriorityQueue<SearchResult> top = new PriorityQueue<>(); // worst on top
+        for (SearchResult result : results) {
+            top.add(result);
+            if (top.size() > limit)
+                top.poll();
+        }
+
+        LinkedList<Post> posts = new LinkedList<>();
+        while (!top.isEmpty())
+            posts.addFirst(top.poll().getPost());
+        return new LinkedHashSet<>(posts);
+    }
+
+    // Usernames that start with the prefix among the ones we and the super peers we reach know, in order
+    public List<String> requestPrefix(String prefix, int limit) {
+        TreeSet<String> usernames = new TreeSet<>(this.peerInfo.getUsernames(prefix, limit));
+
+        List<Neighbour> neighbours = peerInfo.getSuperPeerNeighbours().stream().toList();
+        if (neighbours.isEmpty())
+            neighbours = peerInfo.getNeighbours().stream().toList();
+        if (!neighbours.isEmpty()) {
+            MessageRequest request = new PrefixMessage(prefix, this.peerInfo, limit);
+            Future<List<MessageResponse>> responseFuture = this.sendReqNeighbours(request, neighbours);
+            List<MessageResponse> responses = receiveHitNeighbours(request, responseFuture);
+            for (MessageResponse msg : responses == null ? List.<MessageResponse>of() : responses) {
+                for (String username : ((PrefixHitMessage) msg).getUsernames()) {
+                    usernames.add(username);
+                    this.peerInfo.addUsername(username);
+                }
+            }
+        }
+        return usernames.stream().limit(limit).toList();
+    }
+
+    // Posts of the timeline made in [from, to), oldest first, taken from the most recent copy among ours and the
+    // responders', null if nobody has it. Only the posts in the range are sent, not the whole timeline
+    public List<Post> requestRange(String username, LocalTime from, LocalTime to, int limit) {
+        TimelineInfo timelineInfo = this.peerInfo.getTimelineInfo();
+        List<Post> posts = timelineInfo.getPosts(username, from, to, limit);
+        if (username.equals(this.peerInfo.getUsername()))
+            return posts; // ours is always the most recent
+        LocalTime freshness = posts == null ? null : timelineInfo.getLastUpdate(username);
+
+        List<Neighbour> neighbours = peerInfo.getNeighbours().stream().toList();
+        if (neighbours.isEmpty())
+            return posts;
+
+        MessageRequest request = new RangeMessage(username, this.peerInfo, from, to, limit);
+        Future<List<MessageResponse>> responseFuture = this.sendReqNeighbours(request, neighbours);
+        List<MessageResponse> responses = receiveHitNeighbours(request, responseFuture);
+        for (MessageResponse msg : responses == null ? List.<MessageResponse>of() : responses) {
+            RangeHitMessage hit = (RangeHitMessage) msg;
+            if (posts == null || (hit.getFreshness() != null
+                    && (freshness == null || hit.getFreshness().isAfter(freshness)))) {
+                posts = hit.getPosts();
+                freshness = hit.getFreshness();
+            }
+        }
+        return posts;
+    }
+
+    // Posts of every timeline we are subscribed to made in [from, to), oldest first, at most limit of them
+    // Our copies of them are kept up to date by the subscriptions, no one else is asked
+    public List<Post> requestSubscriptionsRange(LocalTime from, LocalTime to, int limit) {
+        return this.peerInfo.getTimelineInfo().getPosts(this.peerInfo.getSubscriptions(), from, to, limit);
     }
 
     public boolean requestSub(String username) {
@@ -363,6 +538,53 @@ public class Peer implements Serializable {
         }
     }
 
+    // Anti-entropy: compare our stored timelines with a random neighbour's and pull only what differs
+    public void syncNeighbour() {
+        List<Neighbour> neighbours = this.peerInfo.getNeighbours().stream().toList();
+        if (neighbours.isEmpty())
+            return;
+        Neighbour neighbour = neighbours.get(new Random().nextInt(neighbours.size()));
+        TimelineInfo timelineInfo = this.peerInfo.getTimelineInfo();
+        MerkleTree tree = timelineInfo.getMerkleTree();
+
+        SyncResponse response = (SyncResponse) this.requestNeighbour(
+                new SyncMessage(peerInfo.getHost(), tree.getRoot()), neighbour);
+        if (response == null || response.isInSync())
+            return;
+
+        // go down only into the timelines that we both store and differ, we are the source of our own timeline
+        Map<String, long[]> bucketHashes = new HashMap<>();
+        for (String username : tree.diff(response.getTimelineHashes())) {
+            Timeline timeline = timelineInfo.getTimeline(username);
+            if (timeline != null && !username.equals(peerInfo.getUsername()))
+                bucketHashes.put(username, timeline.getBucketHashes());
+        }
+        if (bucketHashes.isEmpty())
+            return;
+
+        SyncBucketsResponse bucketsResponse = (SyncBucketsResponse) this.requestNeighbour(
+                new SyncBucketsMessage(peerInfo.getHost(), bucketHashes), neighbour);
+        if (bucketsResponse == null)
+            return;
+
+        for (TimelineDelta delta : bucketsResponse.getDeltas())
+            timelineInfo.applyDelta(delta);
+    }
+
+    private MessageResponse requestNeighbour(MessageRequest request, Neighbour neighbour) {
+        Future<List<MessageResponse>> promise = broker.addPromise(request.getId());
+        MessageResponse response = null;
+        if (this.sender.sendMessageNTimes(request, neighbour.getPort())) {
+            try {
+                response = promise.get(RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS).get(0);
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            } catch (TimeoutException ignored) {}
+        }
+        broker.removePromise(request.getId());
+        return response;
+    }
+
     public void addNeighbour()  {
         // get higher capacity host not neighbour
         Host candidate = peerInfo.getBestHostNotNeighbour();
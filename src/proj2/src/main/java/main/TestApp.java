@@ -83,6 +83,8 @@ public class TestApp {
                 \t DELETE <username> <post_id>
                 \t TIMELINE <username> <req_timeline>
                 \t SEARCH <username> <search_content>
+                \t PREFIX <username> <prefix>
+                \t RANGE <username> <req_timeline|*> <from> <to>
                 \t SUB <username> <target_username>
                 \t IGNORE <message>
                 \t MSG_DELAY <value>
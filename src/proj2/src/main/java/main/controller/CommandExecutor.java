@@ -4,6 +4,8 @@ import main.Peer;
 import main.controller.message.MessageSender;
 import main.controller.network.AuthenticationServer;
 import main.gui.GraphWrapper;
+import main.model.message.request.query.PrefixMessage;
+import main.model.message.request.query.RangeMessage;
 import main.model.neighbour.Neighbour;
 import main.model.timelines.Post;
 import main.model.timelines.Timeline;
@@ -11,6 +13,8 @@ import main.model.timelines.Timeline;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
@@ -55,6 +59,10 @@ public class CommandExecutor {
                 return this.execTimeline(opts);
             case "SEARCH":
                 return this.execSearch(opts);
+            case "PREFIX":
+                return this.execPrefix(opts);
+            case "RANGE":
+                return this.execRange(opts);
             case "SUB":
                 return this.execSub(opts);
             case "IGNORE":
@@ -344,6 +352,47 @@ public class CommandExecutor {
         return 0;
     }
 
+    private int execPrefix(String[] opts) {
+        String username = opts[1];
+        String prefix = opts[2];
+        Peer peer = peers.get(username);
+
+        if (peer == null) {
+            System.err.println("ERROR: Peer not found.");
+            return -1;
+        }
+
+        List<String> usernames = peer.requestPrefix(prefix, PrefixMessage.LIMIT);
+        System.out.println("Usernames\n" + usernames);
+        return 0;
+    }
+
+    // RANGE <username> <req_timeline> <from> <to>, '*' asks for every subscription
+    private int execRange(String[] opts) {
+        String username = opts[1];
+        String target_user = opts[2];
+        Peer peer = peers.get(username);
+
+        if (peer == null) {
+            System.err.println("ERROR: Peer not found.");
+            return -1;
+        }
+
+        LocalTime from, to;
+        try {
+            from = LocalTime.parse(opts[3]);
+            to = LocalTime.parse(opts[4]);
+        } catch (DateTimeParseException e) {
+            System.err.println("ERROR: Invalid time, expected HH:mm[:ss].");
+            return -1;
+        }
+
+        List<Post> posts = target_user.equals("*") ? peer.requestSubscriptionsRange(from, to, RangeMessage.LIMIT)
+                : peer.requestRange(target_user, from, to, RangeMessage.LIMIT);
+        System.out.println("Posts\n" + posts);
+        return 0;
+    }
+
     private int execSub(String[] opts) {
         String username = opts[1];
         String target_user = opts[2];
@@ -2,37 +2,52 @@ package main.controller.message;
 
 import main.controller.network.Authenticator;
 import main.model.PeerInfo;
+import main.model.QueryInfo;
 import main.model.SocketInfo;
 import main.model.message.*;
 import main.model.message.request.*;
 import main.model.message.request.query.QueryMessage;
+import main.model.message.request.query.PrefixMessage;
 import main.model.message.request.query.QueryMessageImpl;
+import main.model.message.request.query.RangeMessage;
 import main.model.message.request.query.SearchMessage;
 import main.model.message.request.query.SubMessage;
 import main.model.message.response.*;
+import main.model.message.response.query.PrefixHitMessage;
 import main.model.message.response.query.QueryHitMessage;
+import main.model.message.response.query.QueryMissMessage;
+import main.model.message.response.query.RangeHitMessage;
 import main.model.message.response.query.SearchHitMessage;
 import main.model.message.response.query.SubHitMessage;
 import main.model.neighbour.Neighbour;
+import main.model.timelines.MerkleTree;
 import main.model.timelines.Post;
+import main.model.timelines.SearchQuery;
+import main.model.timelines.SearchResult;
 import main.model.timelines.Timeline;
+import main.model.timelines.TimelineDelta;
 import main.model.timelines.TimelineInfo;
 
 import java.security.PublicKey;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
-import java.util.UUID;
+import java.time.LocalTime;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
 import static main.Peer.MAX_RANDOM_NEIGH;
+import static main.Peer.RESPONSE_TIMEOUT;
 
 // Dá handle só a mensagens que iniciam requests (PING)
 public class MessageHandler {
+    // Time that a super peer keeps a coalesced lookup open, must be lower than the time the origin waits for hits
+    private static final int LOOKUP_TIMEOUT = RESPONSE_TIMEOUT * 4;
     private final ConcurrentMap<UUID, CompletableFuture<List<MessageResponse>>> promises;
+    // Lookups that we flood on behalf of other peers, they end on the first hit or when they time out
+    private final Set<UUID> forwardedLookups;
     private PeerInfo peerInfo;
     private final SocketInfo socketInfo;
     private Authenticator authenticator;
@@ -45,6 +60,7 @@ public class MessageHandler {
         this.socketInfo = socketInfo;
         this.authenticator = authenticator;
         this.promises = promises;
+        this.forwardedLookups = ConcurrentHashMap.newKeySet();
     }
 
     public void setSender(MessageSender sender) {
@@ -62,14 +78,22 @@ public class MessageHandler {
             case "PONG" -> handle((PongMessage) message);
             case "QUERY" -> handle((QueryMessage) message);
             case "QUERY_HIT" -> handle((QueryHitMessage) message);
+            case "QUERY_MISS" -> handle((QueryMissMessage) message);
             case "SEARCH" -> handle((SearchMessage) message);
             case "SEARCH_HIT" -> handle((SearchHitMessage) message);
+            case "PREFIX" -> handle((PrefixMessage) message);
+            case "PREFIX_HIT" -> this.addResponse((PrefixHitMessage) message);
+            case "RANGE" -> handle((RangeMessage) message);
+            case "RANGE_HIT" -> handle((RangeHitMessage) message);
             case "PASSOU_BEM" -> handle((PassouBem) message);
             case "PASSOU_BEM_RESPONSE" -> handle((PassouBemResponse) message);
             case "SUB" -> handle((SubMessage) message);
             case "SUB_HIT" -> handle((SubHitMessage) message);
             case "SUB_PING" -> handle((SubPing) message);
             case "SUB_PONG" -> handle((SubPong) message);
+            case "SYNC" -> handle((SyncMessage) message);
+            case "SYNC_BUCKETS" -> handle((SyncBucketsMessage) message);
+            case "SYNC_RESPONSE", "SYNC_BUCKETS_RESPONSE" -> this.addResponse((MessageResponse) message);
             default -> {
             }
         }
@@ -78,7 +102,8 @@ public class MessageHandler {
     private void handle(PingMessage message) {
         // Reply with a Pong message with our info
         peerInfo.addHost(message.getSender());
-        Neighbour ourInfo = new Neighbour(this.peerInfo.getHost(), this.peerInfo.getTimelinesFilter());
+        Neighbour ourInfo = new Neighbour(this.peerInfo.getHost(), this.peerInfo.getTimelinesFilter(),
+                this.peerInfo.getTermsFilter());
         boolean isNeighbour = peerInfo.hasNeighbour(new Neighbour(message.getSender()));
 
         PongMessage replyMsg = new PongMessage(ourInfo, peerInfo.getHostCache(), message.getId(), isNeighbour);
@@ -117,8 +142,9 @@ public class MessageHandler {
         }
     }
 
-    private void propagateSearchMessage(QueryMessageImpl message) {
-        Set<Neighbour> ngbrsToReceive = peerInfo.getNeighbours();
+    private void propagateSearchMessage(SearchMessage message, SearchQuery query) {
+        // only to the neighbours whose terms (or their leaves') may answer the query
+        Set<Neighbour> ngbrsToReceive = peerInfo.getNeighboursWithTerms(query);
         this.propagateMessage(message, ngbrsToReceive);
     }
 
@@ -141,17 +167,66 @@ public class MessageHandler {
             // We have timeline, send query hit to initiator
             Timeline requestedTimeline = ourTimelineInfo.getTimeline(wantedUser);
 
-            if (peerInfo.isAuth())
+            if (peerInfo.isAuth() && !message.isUpToDate(requestedTimeline))
                 requestedTimeline.addSignature(peerInfo.getPrivateKey());
-
-            MessageResponse queryHit = new QueryHitMessage(message.getId(), requestedTimeline);
+            // Only send what changed since the initiator's copy
+            MessageResponse queryHit = message.buildHit(requestedTimeline);
             this.sender.sendMessageNTimes(queryHit, message.getOriginalSender().getPort());
             return;
         }
 
+        if (peerInfo.getQueryInfo().isKnownMiss(wantedUser)) {
+            // Lookup got no hit recently, answer right away instead of flooding again
+            MessageResponse queryMiss = new QueryMissMessage(message.getId(), wantedUser);
+            this.sender.sendMessageNTimes(queryMiss, message.getOriginalSender().getPort());
+            return;
+        }
+
+        if (this.peerInfo.isSuperPeer()) { // super peer => identical queries share a single flood
+            this.coalesceQueryMessage(message);
+            return;
+        }
         this.propagateQueryMessage(message);
     }
 
+    private void coalesceQueryMessage(QueryMessage message) {
+        if (!message.canResend())
+            return; // Message has reached TTL 0
+
+        QueryInfo queryInfo = peerInfo.getQueryInfo();
+        String wantedUser = message.getWantedTimeline();
+        if (!queryInfo.attachForwardedLookup(message))
+            return; // Lookup already in flight, its result will be fanned out to this requester
+
+        // Start our own lookup on behalf of every requester that attaches to it, it goes on from the message's path
+        // and, like any forwarded query, takes a hop of its time to live when propagated
+        QueryMessage lookup = QueryMessage.forwarded(message, peerInfo);
+        CompletableFuture<List<MessageResponse>> promise = new CompletableFuture<>();
+        forwardedLookups.add(lookup.getId());
+        promises.put(lookup.getId(), promise);
+        // only a hit completes the promise, a miss is decided when it times out (see handle(QueryMissMessage))
+        promise.orTimeout(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS).whenComplete((responses, e) -> {
+            promises.remove(lookup.getId());
+            forwardedLookups.remove(lookup.getId());
+            List<QueryMessage> requesters = queryInfo.finishForwardedLookup(wantedUser);
+            QueryHitMessage hit = responses == null ? null : (QueryHitMessage) responses.stream()
+                    .filter(m -> m.getType().equals(QueryHitMessage.type)).findFirst().orElse(null);
+
+            if (hit == null) // No hit within TTL, remember it and tell every requester
+                queryInfo.addMiss(wantedUser);
+            else
+                queryInfo.removeMiss(wantedUser);
+
+            for (QueryMessage requester : requesters) {
+                MessageResponse response = hit == null ? new QueryMissMessage(requester.getId(), wantedUser)
+                        : requester.buildHit(hit.getTimeline());
+                this.sender.sendMessageNTimes(response, requester.getOriginalSender().getPort());
+            }
+        });
+
+        this.propagateQueryMessage(lookup);
+    }
+
     private void handle(SearchMessage message) {
         TimelineInfo ourTimelineInfo = peerInfo.getTimelineInfo();
         String wantedSearch = message.getWantedSearch();
@@ -159,26 +234,84 @@ public class MessageHandler {
         if (message.isInPath(this.peerInfo))
             return; // Already redirected this message
 
-        List<Post> posts = ourTimelineInfo.getRelatedPosts(wantedSearch);
-        if (!posts.isEmpty()) {
+        // Only our best posts are sent, the initiator keeps the best among every peer's
+        SearchQuery query = SearchQuery.parse(wantedSearch);
+        List<SearchResult> results = ourTimelineInfo.search(query, message.getLimit());
+        if (!results.isEmpty()) {
             // We have posts, send search hit to initiator
-            if (peerInfo.isAuth()) {
-                for (Post post: posts) {
-                    post.addSignature(peerInfo.getPrivateKey());
-                }
-            }
+            this.signOwnPosts(results.stream().map(SearchResult::getPost).toList());
 
-            MessageResponse searchHit = new SearchHitMessage(message.getId(), posts);
+            // posts may come from timelines we cache, tell how recent our copies are
+            Map<String, LocalTime> freshness = new HashMap<>();
+            for (SearchResult result : results) {
+                String owner = result.getPost().getUsername();
+                freshness.put(owner, ourTimelineInfo.getFreshness(owner));
+            }
+            MessageResponse searchHit = new SearchHitMessage(message.getId(), results, freshness);
             this.sender.sendMessageNTimes(searchHit, message.getOriginalSender().getPort());
             return;
         }
 
-        this.propagateSearchMessage(message);
+        this.propagateSearchMessage(message, query);
+    }
+
+    // Our posts are signed once, until they or our key change, so repeated queries don't sign them again
+    private void signOwnPosts(List<Post> posts) {
+        if (!peerInfo.isAuth())
+            return;
+        for (Post post : posts)
+            if (post.getUsername().equals(peerInfo.getUsername()) && !post.isSignedBy(peerInfo.getPrivateKey()))
+                post.addSignature(peerInfo.getPrivateKey());
+    }
+
+    private void handle(RangeMessage message) {
+        TimelineInfo ourTimelineInfo = peerInfo.getTimelineInfo();
+        String wantedUser = message.getWantedTimeline();
+
+        if (message.isInPath(this.peerInfo))
+            return; // Already redirected this message
+
+        // Only the posts in the range go back, picked from the time index of our copy
+        List<Post> posts = ourTimelineInfo.getPosts(wantedUser, message.getFrom(), message.getTo(), message.getLimit());
+        if (posts != null) {
+            this.signOwnPosts(posts);
+            MessageResponse rangeHit = new RangeHitMessage(message.getId(), posts,
+                    ourTimelineInfo.getLastUpdate(wantedUser));
+            this.sender.sendMessageNTimes(rangeHit, message.getOriginalSender().getPort());
+            return;
+        }
+
+        this.propagateQueryMessage(message);
+    }
+
+    private void handle(PrefixMessage message) {
+        if (message.isInPath(this.peerInfo))
+            return; // Already redirected this message
+
+        if (this.peerInfo.isSuperPeer()) {
+            // Super peers answer from the usernames they know, the lookup goes no further
+            List<String> usernames = this.peerInfo.getUsernames(message.getPrefix(), message.getLimit());
+            MessageResponse prefixHit = new PrefixHitMessage(message.getId(), usernames);
+            this.sender.sendMessageNTimes(prefixHit, message.getOriginalSender().getPort());
+            return;
+        }
+
+        // Towards the super peers, or anywhere if we have none
+        Set<Neighbour> ngbrsToReceive = this.peerInfo.getSuperPeerNeighbours();
+        if (ngbrsToReceive.isEmpty())
+            ngbrsToReceive = this.peerInfo.getNeighbours();
+        this.propagateMessage(message, ngbrsToReceive);
     }
 
     private void handle(QueryHitMessage message) {
         if (promises.containsKey(message.getId())) {
 
+            if (message.isNotModified() || message.isDelta()) {
+                // Nothing to verify yet, the signature is checked against the requester's updated copy
+                this.addResponse(message);
+                return;
+            }
+
             if (message.getTimeline().hasSignature() && peerInfo.isAuth()) {
                 // Timeline is signed and we can verify it
                 String username = message.getTimeline().getUsername();
@@ -192,48 +325,62 @@ public class MessageHandler {
             } else
                 message.getTimeline().setVerification(false);
 
-            CompletableFuture<List<MessageResponse>> promise = promises.get(message.getId());
-            if (promise.isDone()) {
-                try {
-                    promise.get().add(message);
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
-                }
-            }
-            else {
-                List<MessageResponse> responses = new ArrayList<>();
-                responses.add(message);
-                promises.get(message.getId()).complete(responses);
+            this.addResponse(message);
+        }
+    }
+
+    private void handle(QueryMissMessage message) {
+        // A peer's known miss may be stale, our lookups keep waiting for a hit from the others
+        if (forwardedLookups.contains(message.getId()))
+            return;
+        if (promises.containsKey(message.getId()))
+            this.addResponse(message);
+    }
+
+    // Adds a response to the promise of its request, the first response completes the promise
+    private void addResponse(MessageResponse message) {
+        CompletableFuture<List<MessageResponse>> promise = promises.get(message.getId());
+        if (promise == null)
+            return;
+
+        if (promise.isDone()) {
+            try {
+                promise.get().add(message);
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
             }
         }
+        else {
+            List<MessageResponse> responses = new ArrayList<>();
+            responses.add(message);
+            promise.complete(responses);
+        }
     }
 
     private void handle(SearchHitMessage message) {
         if (promises.containsKey(message.getId())) {
-            // verify each post signature
-            for (Post post : message.getPosts()) {
-                if (post.hasSignature() && peerInfo.isAuth()) {
-                    String username = post.getUsername();
-                    PublicKey publicKey = authenticator.requestPublicKey(username);
-                    assert (publicKey != null);
-                    post.verifySignature(authenticator.requestPublicKey(username));
-                }
-                else post.setVerification(false);
-            }
+            this.verifyPosts(message.getPosts());
+            this.addResponse(message);
+        }
+    }
 
-            CompletableFuture<List<MessageResponse>> promise = promises.get(message.getId());
-            if (promise.isDone()) {
-                try {
-                    promise.get().add(message);
-                } catch (InterruptedException | ExecutionException e) {
-                    e.printStackTrace();
-                }
-            }
-            else {
-                List<MessageResponse> responses = new ArrayList<>();
-                responses.add(message);
-                promises.get(message.getId()).complete(responses);
+    // verify each post signature
+    private void verifyPosts(List<Post> posts) {
+        for (Post post : posts) {
+            if (post.hasSignature() && peerInfo.isAuth()) {
+                String username = post.getUsername();
+                PublicKey publicKey = authenticator.requestPublicKey(username);
+                assert (publicKey != null);
+                post.verifySignature(authenticator.requestPublicKey(username));
             }
+            else post.setVerification(false);
+        }
+    }
+
+    private void handle(RangeHitMessage message) {
+        if (promises.containsKey(message.getId())) {
+            this.verifyPosts(message.getPosts());
+            this.addResponse(message);
         }
     }
 
@@ -316,4 +463,31 @@ public class MessageHandler {
             promises.get(message.getId()).complete(responses);
         }
     }
+
+    private void handle(SyncMessage message) {
+        // Same root, every timeline is the same. Otherwise, go down one level
+        MerkleTree tree = this.peerInfo.getTimelineInfo().getMerkleTree();
+        boolean inSync = tree.getRoot() == message.getRoot();
+        SyncResponse response = new SyncResponse(message.getId(), inSync,
+                inSync ? new HashMap<>() : tree.getTimelineHashes());
+        this.sender.sendMessageNTimes(response, message.getSender().getPort());
+    }
+
+    private void handle(SyncBucketsMessage message) {
+        // Send the posts of the buckets that differ from the sender's
+        TimelineInfo ourTimelineInfo = this.peerInfo.getTimelineInfo();
+        List<TimelineDelta> deltas = new ArrayList<>();
+        for (Map.Entry<String, long[]> entry : message.getBucketHashes().entrySet()) {
+            Timeline timeline = ourTimelineInfo.getTimeline(entry.getKey());
+            if (timeline == null)
+                continue;
+
+            Set<Integer> buckets = MerkleTree.diffBuckets(timeline.getBucketHashes(), entry.getValue());
+            if (!buckets.isEmpty())
+                deltas.add(timeline.getBuckets(buckets));
+        }
+
+        SyncBucketsResponse response = new SyncBucketsResponse(message.getId(), deltas);
+        this.sender.sendMessageNTimes(response, message.getSender().getPort());
+    }
 }
@@ -0,0 +1,93 @@
+package main.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Block compression of serialized objects, used on disk and on the wire
+// Encoded blocks start with a flag that says if the rest is compressed, so readers don't need to know how
+// the block was written. Blocks written before the flag existed (plain serialized objects) are read as they are.
+// Below THRESHOLD, deflate costs more time than it saves in bytes (see CompressionBenchmark), so blocks stay raw.
+public class Compression {
+    public static final int THRESHOLD = 1024; // smallest block worth compressing (in bytes)
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    private static final int MAX_RATIO = 1032; // deflate can't inflate a byte into more than this
+    private static final int HEADER = 1 + Integer.BYTES; // flag and inflated length of a deflated block
+
+    // compress: false if the reader can't inflate, the block is only flagged
+    public static byte[] encode(byte[] bytes, boolean compress) {
+        if (compress && bytes.length >= THRESHOLD) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+            out.write(DEFLATE);
+            out.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).array());
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            deflater.end();
+
+            if (out.size() < bytes.length) // incompressible blocks are kept raw
+                return out.toByteArray();
+        }
+
+        byte[] raw = new byte[bytes.length + 1];
+        raw[0] = RAW;
+        System.arraycopy(bytes, 0, raw, 1, bytes.length);
+        return raw;
+    }
+
+    // Blocks come from disk and from other peers, a bad one is an IOException whatever it holds
+    public static byte[] decode(byte[] block) throws IOException {
+        if (block.length == 0)
+            return block;
+
+        switch (block[0]) {
+            case RAW -> {
+                byte[] bytes = new byte[block.length - 1];
+                System.arraycopy(block, 1, bytes, 0, bytes.length);
+                return bytes;
+            }
+            case DEFLATE -> {
+                if (block.length < HEADER)
+                    throw new IOException("Truncated compressed block");
+                int size = ByteBuffer.wrap(block, 1, Integer.BYTES).getInt();
+                // the length isn't trusted until inflated, it can't be more than the input can inflate to
+                if (size < 0 || size > (long) (block.length - HEADER) * MAX_RATIO)
+                    throw new IOException("Corrupt compressed block length " + size);
+                byte[] bytes = new byte[size];
+                Inflater inflater = new Inflater();
+                inflater.setInput(block, HEADER, block.length - HEADER);
+                try {
+                    int length = 0;
+                    while (length < bytes.length && !inflater.finished()) {
+                        int inflated = inflater.inflate(bytes, length, bytes.length - length);
+                        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                            break;
+                        length += inflated;
+                    }
+                    if (length != bytes.length)
+                        throw new IOException("Truncated compressed block");
+                    // the stream must end right there, with its checksum
+                    if (!inflater.finished() && inflater.inflate(new byte[1]) > 0)
+                        throw new IOException("Compressed block longer than its length");
+                    if (!inflater.finished())
+                        throw new IOException("Truncated compressed block");
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt compressed block", e);
+                } finally {
+                    inflater.end();
+                }
+                return bytes;
+            }
+            default -> {
+                return block; // written without a flag
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import main.gui.Observer;
 import main.model.neighbour.Host;
 import main.model.neighbour.Neighbour;
 import main.model.timelines.Post;
+import main.model.timelines.SearchQuery;
 import main.model.timelines.TimelineInfo;
 
 import java.net.InetAddress;
@@ -20,36 +21,50 @@ import static main.Peer.MAX_SUBS;
 
 // Data class that serves like a Model in an MVC
 public class PeerInfo {
+    public static final int TERMS_FILTER_SIZE = 4096; // terms expected in a filter, its leaves' included
+    public static final double TERMS_FILTER_FPP = 0.05;
+
     private Host me;
     private TimelineInfo timelineInfo;
+    private final QueryInfo queryInfo;
     private Set<Neighbour> neighbours;
     private Set<String> subscriptions; // peers subscribed by me
     private final Set<String> subscribers;
     private final Map<String, Set<String>> redirections; // peers that are relaying on me to redirect info from a username
     private Set<Host> hostCache;
+    private final UsernameIndex usernames; // every username we heard of, answers prefix lookups at super peers
     private Observer observer;
     private BloomFilter<String> timelinesFilter;
+    private BloomFilter<String> termsFilter; // words of the posts we (or our leaves) can answer searches with
     private final int max_nbrs;
     private PrivateKey privateKey;
     private boolean printToConsole;
+    private boolean compression; // hits sent to us may be compressed
 
     public PeerInfo(String username, InetAddress address, int capacity,
                     TimelineInfo timelineInfo, SocketInfo socketInfo) {
         this.max_nbrs = (int) Math.ceil(capacity * 0.3);
         this.me = new Host(username, address, capacity, 0, max_nbrs, MAX_SUBS, socketInfo);
         this.timelineInfo = timelineInfo;
+        this.queryInfo = new QueryInfo();
         this.neighbours = ConcurrentHashMap.newKeySet();
         this.hostCache = ConcurrentHashMap.newKeySet();
         this.subscriptions = ConcurrentHashMap.newKeySet();
         this.redirections = new ConcurrentHashMap<>();
         this.subscribers = ConcurrentHashMap.newKeySet();
+        this.usernames = new UsernameIndex();
+        this.usernames.add(username);
+        for (String stored : timelineInfo.getStoredTimelines())
+            this.usernames.add(stored);
         this.timelinesFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), 100);
         this.timelinesFilter.put(username);
+        this.termsFilter = this.createTermsFilter();
         this.printToConsole = false;
+        this.compression = true;
     }
 
     public PeerInfo(String username, InetAddress address, int capacity, SocketInfo socketInfo) {
-        this(username, address, capacity, new TimelineInfo(username), socketInfo);
+        this(username, address, capacity, new TimelineInfo(username, capacity), socketInfo);
     }
 
     // prints all timelines stored in order
@@ -79,6 +94,8 @@ public class PeerInfo {
         ).collect(Collectors.toSet());
 
         this.hostCache.addAll(filterOurselvesOut);
+        for (Host host : filterOurselvesOut)
+            this.usernames.add(host.getUsername());
     }
 
     public void addNeighbour(Neighbour neighbour) {
@@ -89,6 +106,7 @@ public class PeerInfo {
         neighbours.add(neighbour);
         this.me.setDegree(neighbours.size());
         hostCache.add(neighbour); // Everytime we add a neighbour, we also add to the hostcache
+        usernames.add(neighbour.getUsername());
     }
 
     public void removeNeighbour(Neighbour neighbour) {
@@ -109,11 +127,15 @@ public class PeerInfo {
 
     // Subscriptions
 
-    public void addSubscription(String username) { this.subscriptions.add(username); }
+    public void addSubscription(String username) {
+        this.subscriptions.add(username);
+        this.usernames.add(username);
+    }
     public void removeSubscription(String username) { this.subscriptions.remove(username); }
     public boolean hasSubscription(String username) { return this.subscriptions.contains(username); }
+    public Set<String> getSubscriptions() { return Collections.unmodifiableSet(this.subscriptions); }
     public void addPostOfSubscription(Post post) {
-        this.timelineInfo.addPost(post.getUsername(), post.getContent());
+        this.timelineInfo.putPost(post);
     }
 
     public void addSubscriber(String port) { this.subscribers.add(port); }
@@ -181,6 +203,7 @@ public class PeerInfo {
             return;
 
         hostCache.add(host);
+        usernames.add(host.getUsername());
     }
 
     public void removeHost(Host host) {
@@ -245,15 +268,48 @@ public class PeerInfo {
     public void resetFilter() {
         this.timelinesFilter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), 100);
         this.timelinesFilter.put(this.getUsername());
+        this.termsFilter = this.createTermsFilter();
+    }
+
+    // Same size on every peer, so that filters can be merged
+    private BloomFilter<String> createTermsFilter() {
+        BloomFilter<String> filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                TERMS_FILTER_SIZE, TERMS_FILTER_FPP);
+        for (String term : this.timelineInfo.getSearchTerms())
+            filter.put(term);
+        return filter;
     }
 
     public void mergeFilter(Neighbour neighbour) {
         // merge filters only if neighbour isn't a super peer
         if (!this.isSuperPeer(neighbour)) {
             this.timelinesFilter.putAll(neighbour.getTimelines());
+            if (neighbour.getTerms() != null)
+                this.termsFilter.putAll(neighbour.getTerms());
         }
     }
 
+    // Prefix lookups
+
+    // Usernames we know that start with the prefix, in order
+    public List<String> getUsernames(String prefix, int limit) {
+        return this.usernames.withPrefix(prefix, limit);
+    }
+
+    // Known usernames are kept after their host leaves the cache, the user may still be found through others
+    public void addUsername(String username) {
+        this.usernames.add(username);
+    }
+
+    public Set<Neighbour> getSuperPeerNeighbours() {
+        return neighbours.stream().filter(this::isSuperPeer).collect(Collectors.toSet());
+    }
+
+    // Neighbours that may have posts for the query
+    public Set<Neighbour> getNeighboursWithTerms(SearchQuery query) {
+        return neighbours.stream().filter(n -> query.mightMatch(n.hasTerm())).collect(Collectors.toSet());
+    }
+
     // getters
 
     public String getUsername() {
@@ -298,6 +354,10 @@ public class PeerInfo {
         return timelineInfo;
     }
 
+    public QueryInfo getQueryInfo() {
+        return queryInfo;
+    }
+
     public int getMaxNbrs() {
         return max_nbrs;
     }
@@ -314,12 +374,22 @@ public class PeerInfo {
         privateKey = null;
     }
 
+    public boolean acceptsCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
     public boolean isAuth() {
         return privateKey != null;
     }
 
     public BloomFilter<String> getTimelinesFilter() { return timelinesFilter; }
 
+    public BloomFilter<String> getTermsFilter() { return termsFilter; }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
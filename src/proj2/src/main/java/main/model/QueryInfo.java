@@ -0,0 +1,87 @@
+package main.model;
+
+import main.model.message.request.query.QueryMessage;
+import main.model.timelines.Timeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps in storage the timeline lookups that are in flight and the ones that recently got no hit
+// Identical lookups attach to the one in flight, so that only a single flood is made per wanted username
+public class QueryInfo {
+    public static final int MISS_KEEP_TIME = 10000; // time to remember that a lookup got no hit (in ms)
+    // Lookups started by our own API calls. Username => Result of the lookup
+    private final Map<String, CompletableFuture<Timeline>> localLookups;
+    // Lookups started on behalf of other peers. Username => Queries waiting for the result
+    private final Map<String, List<QueryMessage>> forwardedLookups;
+    // Lookups that got no hit within TTL. Username => Time at which the miss expires
+    private final Map<String, Long> misses;
+    private int missKeepTime;
+
+    public QueryInfo() {
+        this.localLookups = new ConcurrentHashMap<>();
+        this.forwardedLookups = new ConcurrentHashMap<>();
+        this.misses = new ConcurrentHashMap<>();
+        this.missKeepTime = MISS_KEEP_TIME;
+    }
+
+    // Returns the lookup in flight for the username, or null if the given lookup was registered as the in flight one
+    public CompletableFuture<Timeline> startLocalLookup(String username, CompletableFuture<Timeline> lookup) {
+        return this.localLookups.putIfAbsent(username, lookup);
+    }
+
+    public void finishLocalLookup(String username, CompletableFuture<Timeline> lookup, Timeline result) {
+        this.localLookups.remove(username, lookup);
+        lookup.complete(result);
+    }
+
+    // Returns true if the requester is the first one waiting for the username (a new lookup must be started)
+    public boolean attachForwardedLookup(QueryMessage query) {
+        boolean[] isNew = {false};
+        this.forwardedLookups.compute(query.getWantedTimeline(), (k, requesters) -> {
+            if (requesters == null) {
+                requesters = new ArrayList<>();
+                isNew[0] = true;
+            }
+            requesters.add(query);
+            return requesters;
+        });
+        return isNew[0];
+    }
+
+    // Removes the lookup in flight, returns every query that was waiting for it
+    public List<QueryMessage> finishForwardedLookup(String username) {
+        List<QueryMessage> requesters = this.forwardedLookups.remove(username);
+        return requesters == null ? new ArrayList<>() : requesters;
+    }
+
+    // Negative lookups
+
+    public void addMiss(String username) {
+        this.misses.put(username, System.currentTimeMillis() + missKeepTime);
+    }
+
+    public void removeMiss(String username) {
+        this.misses.remove(username);
+    }
+
+    public boolean isKnownMiss(String username) {
+        Long expiration = this.misses.get(username);
+        if (expiration == null)
+            return false;
+
+        if (expiration <= System.currentTimeMillis()) { // miss is stale, the user might be online by now
+            this.misses.remove(username, expiration);
+            return false;
+        }
+        return true;
+    }
+
+    // for testing
+    public void setMissKeepTime(int missKeepTime) {
+        this.missKeepTime = missKeepTime;
+    }
+}
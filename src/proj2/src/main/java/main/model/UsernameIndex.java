@@ -0,0 +1,160 @@
+package main.model;
+
+import java.util.*;
+
+// Usernames known by the peer, in a compressed trie (radix tree): each edge holds the run of characters
+// shared by every username below it, so that a lookup costs the length of the prefix and not the usernames.
+// Children are kept in order, usernames with a prefix come out sorted and the walk stops at the limit.
+public class UsernameIndex {
+    private static class Node {
+        private String label; // characters of the edge that leads to this node
+        private boolean username; // a username ends here
+        private final TreeMap<Character, Node> children; // by first character of their label
+
+        private Node(String label) {
+            this.label = label;
+            this.children = new TreeMap<>();
+        }
+    }
+
+    private final Node root;
+    private int size;
+
+    public UsernameIndex() {
+        this.root = new Node("");
+        this.size = 0;
+    }
+
+    public synchronized void add(String username) {
+        Node node = this.root;
+        int i = 0;
+        while (true) {
+            if (i == username.length()) {
+                if (!node.username) {
+                    node.username = true;
+                    ++this.size;
+                }
+                return;
+            }
+
+            Node child = node.children.get(username.charAt(i));
+            if (child == null) {
+                Node leaf = new Node(username.substring(i));
+                leaf.username = true;
+                node.children.put(username.charAt(i), leaf);
+                ++this.size;
+                return;
+            }
+
+            int common = commonPrefix(child.label, username, i);
+            if (common < child.label.length()) { // split the edge where they differ
+                Node middle = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                middle.children.put(child.label.charAt(0), child);
+                node.children.put(middle.label.charAt(0), middle);
+                child = middle;
+            }
+            node = child;
+            i += common;
+        }
+    }
+
+    public synchronized void remove(String username) {
+        Deque<Node> path = new ArrayDeque<>();
+        Node node = this.root;
+        int i = 0;
+        while (i < username.length()) {
+            Node child = node.children.get(username.charAt(i));
+            if (child == null || !username.startsWith(child.label, i))
+                return;
+            path.push(node);
+            node = child;
+            i += child.label.length();
+        }
+        if (!node.username)
+            return;
+        node.username = false;
+        --this.size;
+
+        // keep the trie compressed: drop the node if it leads nowhere, merge it with its child if it has one
+        if (node == this.root)
+            return;
+        Node parent = path.peek();
+        if (node.children.isEmpty()) {
+            parent.children.remove(node.label.charAt(0));
+            if (parent != this.root && !parent.username && parent.children.size() == 1)
+                merge(parent);
+        } else if (node.children.size() == 1) {
+            merge(node);
+        }
+    }
+
+    // Absorbs the only child of the node
+    private static void merge(Node node) {
+        Node child = node.children.firstEntry().getValue();
+        node.label += child.label;
+        node.username = child.username;
+        node.children.clear();
+        node.children.putAll(child.children);
+    }
+
+    private static int commonPrefix(String label, String username, int from) {
+        int common = 0;
+        while (common < label.length() && from + common < username.length()
+                && label.charAt(common) == username.charAt(from + common))
+            ++common;
+        return common;
+    }
+
+    public synchronized boolean contains(String username) {
+        Node node = this.root;
+        int i = 0;
+        while (i < username.length()) {
+            Node child = node.children.get(username.charAt(i));
+            if (child == null || !username.startsWith(child.label, i))
+                return false;
+            node = child;
+            i += child.label.length();
+        }
+        return node.username;
+    }
+
+    // Usernames that start with the prefix, in order, at most limit of them
+    public synchronized List<String> withPrefix(String prefix, int limit) {
+        List<String> usernames = new ArrayList<>();
+        Node node = this.root;
+        StringBuilder path = new StringBuilder();
+        int i = 0;
+        while (i < prefix.length()) {
+            Node child = node.children.get(prefix.charAt(i));
+            if (child == null)
+                return usernames;
+            int common = commonPrefix(child.label, prefix, i);
+            if (i + common < prefix.length() && common < child.label.length())
+                return usernames; // differ inside the edge
+            path.append(child.label);
+            node = child;
+            i += child.label.length();
+        }
+        collect(node, path, usernames, limit);
+        return usernames;
+    }
+
+    private static void collect(Node node, StringBuilder path, List<String> usernames, int limit) {
+        if (usernames.size() >= limit)
+            return;
+        if (node.username)
+            usernames.add(path.toString());
+        for (Node child : node.children.values()) {
+            if (usernames.size() >= limit)
+                return;
+            path.append(child.label);
+            collect(child, path, usernames, limit);
+            path.setLength(path.length() - child.label.length());
+        }
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+}
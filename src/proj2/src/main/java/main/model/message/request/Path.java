@@ -16,6 +16,10 @@ public class Path implements Serializable {
         path.add(sender);
     }
 
+    public void addSenders(Path other) {
+        path.addAll(other.path);
+    }
+
     public boolean isEmpty() {
         return path.isEmpty();
     }
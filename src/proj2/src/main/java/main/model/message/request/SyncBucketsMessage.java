@@ -0,0 +1,29 @@
+package main.model.message.request;
+
+import main.model.neighbour.Host;
+
+import java.util.Map;
+
+// Asks for the posts of the buckets that differ, for the timelines whose hashes differ
+public class SyncBucketsMessage extends MessageRequest {
+    private final Host sender;
+    private final Map<String, long[]> bucketHashes; // Username => Hash of each bucket
+
+    public SyncBucketsMessage(Host sender, Map<String, long[]> bucketHashes) {
+        this.sender = sender;
+        this.bucketHashes = bucketHashes;
+    }
+
+    public Host getSender() {
+        return sender;
+    }
+
+    public Map<String, long[]> getBucketHashes() {
+        return bucketHashes;
+    }
+
+    @Override
+    public String getType() {
+        return "SYNC_BUCKETS";
+    }
+}
@@ -0,0 +1,27 @@
+package main.model.message.request;
+
+import main.model.neighbour.Host;
+
+// Starts an anti-entropy round, carries the root of the sender's merkle tree
+public class SyncMessage extends MessageRequest {
+    private final Host sender;
+    private final long root;
+
+    public SyncMessage(Host sender, long root) {
+        this.sender = sender;
+        this.root = root;
+    }
+
+    public Host getSender() {
+        return sender;
+    }
+
+    public long getRoot() {
+        return root;
+    }
+
+    @Override
+    public String getType() {
+        return "SYNC";
+    }
+}
@@ -0,0 +1,33 @@
+package main.model.message.request.query;
+
+import main.model.PeerInfo;
+
+// Asks super peers for the usernames they know that start with a prefix
+public class PrefixMessage extends QueryMessageImpl {
+    public static final String type = "PREFIX";
+    public static final int LIMIT = 20; // usernames returned by each peer
+    private final int limit;
+
+    public PrefixMessage(String prefix, PeerInfo peerInfo, int limit) {
+        super(prefix, peerInfo);
+        this.limit = limit;
+    }
+
+    public String getPrefix() {
+        return wantedSearch;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return type + "("+ this.wantedSearch + ":" + path.toString() + ")";
+    }
+}
@@ -1,19 +1,71 @@
 package main.model.message.request.query;
 
 import main.model.PeerInfo;
+import main.model.message.response.query.QueryHitMessage;
+import main.model.timelines.Timeline;
 
 // Message that will be redirected
 public class QueryMessage extends QueryMessageImpl {
     public static final String type = "QUERY";
+    public static final long NO_VERSION = -1;
+    // Version of the requester's copy of the timeline, NO_VERSION if it has none
+    private final long knownVersion;
+    private final boolean compression; // requester accepts compressed hits
+
+    private QueryMessage(String username, PeerInfo peerInfo, int timeToLive, long knownVersion) {
+        super(username, peerInfo, timeToLive);
+        this.knownVersion = knownVersion;
+        this.compression = peerInfo.acceptsCompression();
+    }
 
     public QueryMessage(String username, PeerInfo peerInfo) {
-        super(username, peerInfo);
+        this(username, peerInfo, TTL, NO_VERSION);
+    }
+
+    // Asks for what changed since the requester's copy, knownVersion: its version, NO_VERSION if it has none
+    public static QueryMessage withVersion(String username, PeerInfo peerInfo, long knownVersion) {
+        return new QueryMessage(username, peerInfo, TTL, knownVersion);
+    }
+
+    // Lookup sent by a peer on behalf of the query and the ones that attach to it, with the time to live left to
+    // the query. Hits come back to the peer, the one that starts the path, the rest of the query's path follows so
+    // that the lookup isn't sent back to peers that already had it
+    public static QueryMessage forwarded(QueryMessage query, PeerInfo peerInfo) {
+        QueryMessage lookup = new QueryMessage(query.getWantedTimeline(), peerInfo, query.getTimeToLive(), NO_VERSION);
+        lookup.path.addSenders(query.path);
+        return lookup;
     }
 
     public String getWantedTimeline() {
         return wantedSearch;
     }
 
+    public long getKnownVersion() {
+        return knownVersion;
+    }
+
+    public boolean acceptsCompression() {
+        return compression;
+    }
+
+    public boolean hasKnownVersion() {
+        return knownVersion != NO_VERSION;
+    }
+
+    // Requester's copy is as recent as the given timeline, there is no need to send it
+    public boolean isUpToDate(Timeline timeline) {
+        return this.hasKnownVersion() && timeline.getVersion() <= knownVersion;
+    }
+
+    // Builds the hit that the requester needs: nothing, the changes since its version or the whole timeline
+    public QueryHitMessage buildHit(Timeline timeline) {
+        if (this.isUpToDate(timeline))
+            return new QueryHitMessage(this.getId());
+        if (this.hasKnownVersion())
+            return new QueryHitMessage(this.getId(), timeline.getDelta(knownVersion), compression);
+        return new QueryHitMessage(this.getId(), timeline, compression);
+    }
+
     @Override
     public String getType() {
         return type;
@@ -7,17 +7,21 @@ import main.model.message.request.Sender;
 
 
 public abstract class QueryMessageImpl extends MessageRequest {
-    private final static int TTL = 10;
+    protected final static int TTL = 10;
     public Path path;
     protected final String wantedSearch;
     protected int timeToLive;
 
-    public QueryMessageImpl(String username, PeerInfo peerInfo) {
+    public QueryMessageImpl(String username, PeerInfo peerInfo, int timeToLive) {
         this.path = new Path();
         this.path.addSender(new Sender(peerInfo));
         // We put username in the beginning of the id so that no identifier is the same
         this.wantedSearch = username;
-        this.timeToLive = TTL;
+        this.timeToLive = timeToLive;
+    }
+
+    public QueryMessageImpl(String username, PeerInfo peerInfo) {
+        this(username, peerInfo, TTL);
     }
 
     public boolean isInPath(Sender sender) {
@@ -36,6 +40,10 @@ public abstract class QueryMessageImpl extends MessageRequest {
         return timeToLive != 0;
     }
 
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
     public void decreaseTtl() {
         if (canResend()) timeToLive--;
     }
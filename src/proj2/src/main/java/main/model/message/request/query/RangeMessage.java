@@ -0,0 +1,47 @@
+package main.model.message.request.query;
+
+import main.model.PeerInfo;
+
+import java.time.LocalTime;
+
+// Asks for the posts of a timeline made in [from, to), answered by the peers that store it
+public class RangeMessage extends QueryMessageImpl {
+    public static final String type = "RANGE";
+    public static final int LIMIT = 50; // posts returned by each peer
+    private final LocalTime from;
+    private final LocalTime to;
+    private final int limit;
+
+    public RangeMessage(String username, PeerInfo peerInfo, LocalTime from, LocalTime to, int limit) {
+        super(username, peerInfo);
+        this.from = from;
+        this.to = to;
+        this.limit = limit;
+    }
+
+    public String getWantedTimeline() {
+        return wantedSearch;
+    }
+
+    public LocalTime getFrom() {
+        return from;
+    }
+
+    public LocalTime getTo() {
+        return to;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return type + "("+ this.wantedSearch + "[" + from + ", " + to + "):" + path.toString() + ")";
+    }
+}
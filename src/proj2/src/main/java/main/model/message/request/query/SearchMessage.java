@@ -4,8 +4,20 @@ import main.model.PeerInfo;
 
 public class SearchMessage extends QueryMessageImpl{
     public static final String type = "SEARCH";
+    public static final int LIMIT = 10; // results returned by each peer
+    private final int limit;
 
-    public SearchMessage(String search, PeerInfo peerInfo) { super(search, peerInfo); }
+    public SearchMessage(String search, PeerInfo peerInfo) { this(search, peerInfo, LIMIT); }
+
+    // search: parsed by each peer (see SearchQuery)
+    public SearchMessage(String search, PeerInfo peerInfo, int limit) {
+        super(search, peerInfo);
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
 
     @Override
     public String getType() {
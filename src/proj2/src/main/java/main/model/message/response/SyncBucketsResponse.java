@@ -0,0 +1,24 @@
+package main.model.message.response;
+
+import main.model.timelines.TimelineDelta;
+
+import java.util.List;
+import java.util.UUID;
+
+public class SyncBucketsResponse extends MessageResponse {
+    private final List<TimelineDelta> deltas; // posts of the buckets that differ, one per timeline
+
+    public SyncBucketsResponse(UUID id, List<TimelineDelta> deltas) {
+        super(id);
+        this.deltas = deltas;
+    }
+
+    public List<TimelineDelta> getDeltas() {
+        return deltas;
+    }
+
+    @Override
+    public String getType() {
+        return "SYNC_BUCKETS_RESPONSE";
+    }
+}
@@ -0,0 +1,28 @@
+package main.model.message.response;
+
+import java.util.Map;
+import java.util.UUID;
+
+public class SyncResponse extends MessageResponse {
+    private final boolean inSync;
+    private final Map<String, Long> timelineHashes; // Username => Hash of the timeline, empty if in sync
+
+    public SyncResponse(UUID id, boolean inSync, Map<String, Long> timelineHashes) {
+        super(id);
+        this.inSync = inSync;
+        this.timelineHashes = timelineHashes;
+    }
+
+    public boolean isInSync() {
+        return inSync;
+    }
+
+    public Map<String, Long> getTimelineHashes() {
+        return timelineHashes;
+    }
+
+    @Override
+    public String getType() {
+        return "SYNC_RESPONSE";
+    }
+}
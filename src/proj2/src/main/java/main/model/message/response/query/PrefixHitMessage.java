@@ -0,0 +1,23 @@
+package main.model.message.response.query;
+
+import java.util.List;
+import java.util.UUID;
+
+public class PrefixHitMessage extends QueryResponseImpl {
+    public static final String type = "PREFIX_HIT";
+    private final List<String> usernames; // in order
+
+    public PrefixHitMessage(UUID id, List<String> usernames) {
+        super(id);
+        this.usernames = usernames;
+    }
+
+    public List<String> getUsernames() {
+        return usernames;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+}
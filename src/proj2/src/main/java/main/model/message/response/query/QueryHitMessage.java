@@ -1,24 +1,93 @@
 package main.model.message.response.query;
 
+import main.controller.message.MessageBuilder;
+import main.model.Compression;
 import main.model.message.request.MessageRequest;
 import main.model.message.response.MessageResponse;
 import main.model.timelines.Timeline;
+import main.model.timelines.TimelineDelta;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
 import java.util.UUID;
 
 public class QueryHitMessage extends QueryResponseImpl {
-    private final Timeline timeline;
+    // Either the whole timeline, the changes since the requester's version, or none if it wasn't modified
+    // Sent as a block of Compression, compressed if the requester accepts it (see writeObject)
+    private transient Timeline timeline;
+    private transient TimelineDelta delta;
+    private final boolean compress;
     public static final String type = "QUERY_HIT";
 
-    public QueryHitMessage(UUID id, Timeline requestedTimeline) {
+    public QueryHitMessage(UUID id, Timeline requestedTimeline, boolean compress) {
         super(id);
         this.timeline = requestedTimeline;
+        this.delta = null;
+        this.compress = compress;
+    }
+
+    public QueryHitMessage(UUID id, TimelineDelta delta, boolean compress) {
+        super(id);
+        this.timeline = null;
+        this.delta = delta;
+        this.compress = compress;
+    }
+
+    public QueryHitMessage(UUID id, Timeline requestedTimeline) {
+        this(id, requestedTimeline, false);
+    }
+
+    public QueryHitMessage(UUID id, TimelineDelta delta) {
+        this(id, delta, false);
+    }
+
+    // Hit for a requester that already has the most recent version of the timeline
+    public QueryHitMessage(UUID id) {
+        this(id, (Timeline) null);
     }
 
     public Timeline getTimeline() {
         return timeline;
     }
 
+    public TimelineDelta getDelta() {
+        return delta;
+    }
+
+    public boolean isDelta() {
+        return delta != null;
+    }
+
+    public boolean isNotModified() {
+        return timeline == null && delta == null;
+    }
+
+    // Version of the timeline that the requester ends up with
+    public long getVersion() {
+        if (this.isDelta())
+            return delta.getVersion();
+        return timeline == null ? -1 : timeline.getVersion();
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        byte[] body = MessageBuilder.objectToByteArray(this.isDelta() ? delta : timeline);
+        out.writeObject(Compression.encode(body, compress));
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        Object body = MessageBuilder.objectFromByteArray(Compression.decode((byte[]) in.readObject()));
+        if (body instanceof TimelineDelta)
+            this.delta = (TimelineDelta) body;
+        else
+            this.timeline = (Timeline) body;
+    }
+
     @Override
     public String getType() {
         return type;
@@ -0,0 +1,23 @@
+package main.model.message.response.query;
+
+import java.util.UUID;
+
+// Sent instead of a query hit when the wanted timeline is known to be missing
+public class QueryMissMessage extends QueryResponseImpl {
+    public static final String type = "QUERY_MISS";
+    private final String wantedTimeline;
+
+    public QueryMissMessage(UUID id, String wantedTimeline) {
+        super(id);
+        this.wantedTimeline = wantedTimeline;
+    }
+
+    public String getWantedTimeline() {
+        return wantedTimeline;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+}
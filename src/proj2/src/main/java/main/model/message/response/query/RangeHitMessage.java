@@ -0,0 +1,32 @@
+package main.model.message.response.query;
+
+import main.model.timelines.Post;
+
+import java.time.LocalTime;
+import java.util.List;
+import java.util.UUID;
+
+public class RangeHitMessage extends QueryResponseImpl {
+    public static final String type = "RANGE_HIT";
+    private final List<Post> posts; // oldest first
+    private final LocalTime freshness; // last update of the copy the posts came from
+
+    public RangeHitMessage(UUID id, List<Post> posts, LocalTime freshness) {
+        super(id);
+        this.posts = posts;
+        this.freshness = freshness;
+    }
+
+    public List<Post> getPosts() {
+        return posts;
+    }
+
+    public LocalTime getFreshness() {
+        return freshness;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+}
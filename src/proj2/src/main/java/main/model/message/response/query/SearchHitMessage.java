@@ -1,21 +1,34 @@
 package main.model.message.response.query;
 
 import main.model.timelines.Post;
+import main.model.timelines.SearchResult;
 
+import java.time.LocalTime;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class SearchHitMessage extends QueryResponseImpl{
-    private final List<Post> posts;
+    private final List<SearchResult> results; // best first
+    private final Map<String, LocalTime> freshness; // Owner => Last update of the copy the posts came from
     public static final String type = "SEARCH_HIT";
 
-    public SearchHitMessage(UUID id, List<Post> requestedPosts) {
+    public SearchHitMessage(UUID id, List<SearchResult> results, Map<String, LocalTime> freshness) {
         super(id);
-        this.posts = requestedPosts;
+        this.results = results;
+        this.freshness = freshness;
+    }
+
+    public List<SearchResult> getResults() {
+        return results;
     }
 
     public List<Post> getPosts() {
-        return posts;
+        return results.stream().map(SearchResult::getPost).toList();
+    }
+
+    public Map<String, LocalTime> getFreshness() {
+        return freshness;
     }
 
     @Override
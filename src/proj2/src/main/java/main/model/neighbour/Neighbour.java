@@ -8,11 +8,12 @@ import main.Peer;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
 
 
 public class Neighbour extends Host implements Serializable{
     private BloomFilter<String> timelines;
-
+    private BloomFilter<String> terms; // words of the posts it can answer searches with, null until it tells us
 
     public Neighbour(String username, InetAddress address, int capacity, int degree,
                      int maxNbrs, String frontendPort, String publisherPort) {
@@ -30,14 +31,28 @@ public class Neighbour extends Host implements Serializable{
         this.timelines = timelines;
     }
 
+    public Neighbour(Host host, BloomFilter<String> timelines, BloomFilter<String> terms) {
+        this(host, timelines);
+        this.terms = terms;
+    }
+
     public boolean hasTimeline(String username) {
         return timelines.mightContain(username);
     }
 
+    // Neighbours that haven't sent their terms yet may have any of them
+    public Predicate<String> hasTerm() {
+        return terms == null ? term -> true : terms::mightContain;
+    }
+
     public BloomFilter<String> getTimelines() {
         return timelines;
     }
 
+    public BloomFilter<String> getTerms() {
+        return terms;
+    }
+
     public String toString() {
         return super.toString() + " Degree: " + getDegree();
     }
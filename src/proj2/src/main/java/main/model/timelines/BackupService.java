@@ -1,33 +1,156 @@
 package main.model.timelines;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class BackupService implements Runnable {
+// Writes the changes made to the timelines to the store, as durable as the peer asks for
+// NONE: changes wait in a dirty set keyed by username, so that every change made to the same timeline within
+// a flush interval becomes a single write.
+// BATCHED and SYNC: changes are appended to the log as they are made, and forced to disk every flush interval
+// (BATCHED) or before the change returns (SYNC, see commit()).
+// A single thread does every write behind, periodic force and compaction (of the log and of the cached timelines).
+public class BackupService {
+    public static final int FLUSH_INTERVAL = 200; // max time that a change waits to be written (in ms)
 
-    private Timeline timeline;
-    private File timelinesFolder;
+    private final TimelineInfo timelineInfo; // changes are made while holding its lock
+    private final TimelineStore store;
+    private final TimelineCache cache;
+    private final Durability durability;
+    private final Map<String, StoreRecord> dirty; // Username => Changes waiting to be written
+    private final ScheduledExecutorService executor;
+    // What the writes cost, guarded by this
+    private long changes;
+    private long addNanos; // time spent writing the changes (or queueing them, see NONE)
+    private long commits;
+    private long commitNanos; // time spent waiting for the changes to be on disk
+    private long maxCommitNanos;
 
-    public BackupService(File timelinesFolder) {
-        this.timeline = null;
-        this.timelinesFolder = timelinesFolder;
+    // What the changes made so far cost, to compare the durabilities (see DurabilityBenchmark)
+    // appended: records written to the log, forces: of the log to disk
+    public record Stats(long changes, long addNanos, long commits, long commitNanos, long maxCommitNanos,
+                        long appended, long forces) {
+        public long averageAddNanos() {
+            return changes == 0 ? 0 : addNanos / changes;
+        }
+
+        public long averageCommitNanos() {
+            return commits == 0 ? 0 : commitNanos / commits;
+        }
+    }
+
+    public BackupService(TimelineInfo timelineInfo, TimelineStore store, TimelineCache cache,
+                         Durability durability, int flushInterval) {
+        this.timelineInfo = timelineInfo;
+        this.store = store;
+        this.cache = cache;
+        this.durability = durability;
+        this.dirty = new HashMap<>();
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public void add(StoreRecord record) {
+        long start = System.nanoTime();
+        synchronized (this.timelineInfo) {
+            if (this.durability == Durability.NONE) {
+                this.dirty.merge(record.getUsername(), record, StoreRecord::merge);
+            } else {
+                // appended while holding the lock, so that the log has the changes in the order they were made
+                try {
+                    this.store.append(record);
+                } catch (IOException e) {
+                    System.err.println("Error: Couldn't save timeline of " + record.getUsername() + ".");
+                    e.printStackTrace();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            ++this.changes;
+            this.addNanos += elapsed;
+        }
+    }
+
+    // Returns once the changes made so far are on disk, if the peer asked for it
+    // Must be called without holding the lock of the timelines, so that concurrent changes share the force
+    public void commit() {
+        if (this.durability != Durability.SYNC)
+            return;
+        long start = System.nanoTime();
+        try {
+            this.store.sync(this.store.getAppended());
+        } catch (IOException e) {
+            System.err.println("Error: Couldn't save timelines.");
+            e.printStackTrace();
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            ++this.commits;
+            this.commitNanos += elapsed;
+            this.maxCommitNanos = Math.max(this.maxCommitNanos, elapsed);
+        }
     }
 
-    public void setTimeline(Timeline timeline) {
-        this.timeline = timeline;
+    public synchronized Stats getStats() {
+        return new Stats(this.changes, this.addNanos, this.commits, this.commitNanos, this.maxCommitNanos,
+                this.store.getAppended(), this.store.getForces());
     }
 
-    @Override
-    public void run() {
+    public void flush() {
+        List<byte[]> records = new ArrayList<>();
         try {
-            if (this.timeline != null) {
-                this.timeline.save(this.timelinesFolder);
-                this.timeline = null;
+            synchronized (this.timelineInfo) {
+                // records point to live timelines and posts, encode them before they change again
+                for (StoreRecord record : this.dirty.values())
+                    records.add(TimelineStore.encode(record));
+                this.dirty.clear();
             }
+            long appended = this.store.append(records);
+            if (this.durability == Durability.BATCHED)
+                this.store.sync(appended);
+
+            if (this.store.needsCompaction())
+                this.compact();
+            if (this.cache.needsCompaction())
+                this.cache.compact();
+        } catch (IOException e) {
+            System.err.println("Error: Couldn't save timelines.");
+            e.printStackTrace();
+        }
+    }
+
+    private void compact() throws IOException {
+        synchronized (this.timelineInfo) {
+            // the snapshot has every change, including the ones that are still waiting
+            // (cached timelines are in the segments)
+            this.dirty.clear();
+            this.store.compact(List.of(this.timelineInfo.getOwnTimeline()));
+        }
+    }
+
+    // Writes every change that is waiting and stops the writer
+    public void stop() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(FLUSH_INTERVAL * 5L, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        this.flush();
+        try {
+            this.store.close();
         } catch (IOException e) {
-            System.err.println("Error: Couldn't save timeline.");
             e.printStackTrace();
-        } 
+        }
     }
-    
 }
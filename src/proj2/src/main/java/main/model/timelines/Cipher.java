@@ -5,23 +5,51 @@ import java.security.*;
 
 public class Cipher implements Serializable {
     private byte[] sign = null;
+    private transient PrivateKey signer; // key of the signature we made, unknown for received ones
 
     public boolean hasSignature(){
         return sign != null;
     }
 
     public void addSignature(String toCipher, PrivateKey privateKey) {
+        byte[] signed = sign(toCipher, privateKey);
+        if (signed != null) {
+            sign = signed;
+            signer = privateKey;
+        }
+    }
+
+    public boolean verifySignature(String toCipher, PublicKey publicKey) {
+        return verify(toCipher, sign, publicKey);
+    }
+
+    public boolean isSignedBy(PrivateKey privateKey) {
+        return sign != null && privateKey.equals(signer);
+    }
+
+    public void removeSignature() {
+        sign = null;
+        signer = null;
+    }
+
+    public byte[] getSign() {
+        return sign;
+    }
+
+    // Signature of the text, null if it couldn't be made
+    public static byte[] sign(String toCipher, PrivateKey privateKey) {
         try {
             Signature signature = Signature.getInstance("SHA256withDSA");
             signature.initSign(privateKey);
             signature.update(toCipher.getBytes());
-            sign = signature.sign();
+            return signature.sign();
         } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
             e.printStackTrace();
         }
+        return null;
     }
 
-    public boolean verifySignature(String toCipher, PublicKey publicKey) {
+    public static boolean verify(String toCipher, byte[] sign, PublicKey publicKey) {
         try {
             Signature signature = Signature.getInstance("SHA256withDSA");
             signature.initVerify(publicKey);
@@ -33,8 +61,4 @@ public class Cipher implements Serializable {
         return false;
     }
 
-    public byte[] getSign() {
-        return sign;
-    }
-
 }
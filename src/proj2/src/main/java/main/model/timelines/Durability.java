@@ -0,0 +1,8 @@
+package main.model.timelines;
+
+// How long a change to the timelines may live only in memory
+public enum Durability {
+    NONE,    // changes are written behind every flush interval and never forced to disk (a crash loses them)
+    BATCHED, // changes are appended right away and forced to disk every flush interval
+    SYNC     // changes are appended right away and only return once they are forced to disk
+}
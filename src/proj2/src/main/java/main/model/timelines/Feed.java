@@ -0,0 +1,119 @@
+package main.model.timelines;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+import java.time.LocalTime;
+import java.util.*;
+
+// Posts of every timeline stored by the peer in time order, kept as a sorted list per timeline as they change
+// A page of the feed is a k-way merge of the lists from a cursor, so that it costs the number of timelines and
+// the size of the page, not a sort of every post. Only the position of the posts is kept, not the posts themselves.
+// Like SearchIndex, a copy of a timeline older than the one in the feed is ignored.
+public class Feed {
+    // Position of a post in the feed, posts made at the same time are ordered by owner and id
+    public record Entry(LocalTime timestamp, String username, int postId) implements Comparable<Entry> {
+        public Entry(Post post) {
+            this(post.getTimestamp(), post.getUsername(), post.getId());
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int cmp = this.timestamp.compareTo(o.timestamp);
+            if (cmp == 0)
+                cmp = this.username.compareTo(o.username);
+            return cmp != 0 ? cmp : Integer.compare(this.postId, o.postId);
+        }
+    }
+
+    private final Map<String, TreeSet<Entry>> timelines; // Owner => Its posts in order
+    private final Map<String, Map<Integer, Entry>> entries; // Owner => Post id => Its position
+    private final Map<String, LocalTime> freshness; // Owner => Last update of the copy in the feed
+
+    public Feed() {
+        this.timelines = new HashMap<>();
+        this.entries = new HashMap<>();
+        this.freshness = new HashMap<>();
+    }
+
+    // Replaces the posts of the timeline's owner unless the feed has a newer copy
+    public synchronized void put(Timeline timeline) {
+        String owner = timeline.getUsername();
+        LocalTime current = this.freshness.get(owner);
+        if (current != null && current.isAfter(timeline.getLastUpdate()))
+            return;
+
+        this.remove(owner);
+        TreeSet<Entry> posts = new TreeSet<>();
+        Map<Integer, Entry> positions = new HashMap<>();
+        for (Post post : timeline.getPosts()) {
+            Entry entry = new Entry(post.getTimestamp(), owner, post.getId());
+            posts.add(entry);
+            positions.put(post.getId(), entry);
+        }
+        this.timelines.put(owner, posts);
+        this.entries.put(owner, positions);
+        this.freshness.put(owner, timeline.getLastUpdate());
+    }
+
+    // Moves the posts touched by the change, the timeline must already have it applied
+    public synchronized void update(Timeline timeline, TimelineDelta change) {
+        String owner = timeline.getUsername();
+        TreeSet<Entry> posts = this.timelines.get(owner);
+        if (posts == null) {
+            this.put(timeline);
+            return;
+        }
+
+        Set<Integer> changed = new HashSet<>(change.getTombstones().keySet());
+        for (Post post : change.getPosts())
+            changed.add(post.getId());
+
+        Map<Integer, Entry> positions = this.entries.get(owner);
+        for (int postId : changed) {
+            Entry previous = positions.remove(postId);
+            if (previous != null)
+                posts.remove(previous);
+            Post post = timeline.getPost(postId); // the change may have been older than what we hold
+            if (post != null) {
+                Entry entry = new Entry(post.getTimestamp(), owner, postId);
+                posts.add(entry);
+                positions.put(postId, entry);
+            }
+        }
+        this.freshness.put(owner, timeline.getLastUpdate());
+    }
+
+    public synchronized void remove(String owner) {
+        this.timelines.remove(owner);
+        this.entries.remove(owner);
+        this.freshness.remove(owner);
+    }
+
+    // Positions of the posts that come after the cursor (null for the first page), oldest first, at most limit
+    public synchronized List<Entry> page(Entry after, int limit) {
+        // one iterator per timeline, the heap gives the one whose next post comes first
+        PriorityQueue<PeekingIterator<Entry>> heads = new PriorityQueue<>(Comparator.comparing(PeekingIterator::peek));
+        for (TreeSet<Entry> posts : this.timelines.values()) {
+            Iterator<Entry> it = after == null ? posts.iterator() : posts.tailSet(after, false).iterator();
+            if (it.hasNext())
+                heads.add(Iterators.peekingIterator(it));
+        }
+
+        List<Entry> page = new ArrayList<>();
+        while (page.size() < limit && !heads.isEmpty()) {
+            PeekingIterator<Entry> head = heads.poll();
+            page.add(head.next());
+            if (head.hasNext())
+                heads.add(head);
+        }
+        return page;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (TreeSet<Entry> posts : this.timelines.values())
+            size += posts.size();
+        return size;
+    }
+}
@@ -0,0 +1,102 @@
+package main.model.timelines;
+
+import java.io.*;
+import java.time.LocalTime;
+import java.util.*;
+
+// Timelines saved by earlier versions of the peer: one file per timeline in the peer's folder, named after its owner,
+// with the Timeline of that time serialized in it. The classes have changed since, so the files are read into copies
+// of the old ones (fields must match them exactly) and turned into current timelines. Read once by TimelineStore.
+final class LegacyTimelines {
+    private static final Map<String, Class<?>> OLD_CLASSES = Map.of(
+            "main.model.timelines.Timeline", OldTimeline.class,
+            "main.model.timelines.Post", OldPost.class,
+            "main.model.timelines.Cipher", OldCipher.class);
+
+    private static class OldTimeline implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private Map<Integer, OldPost> posts;
+        private int lastPostId;
+        private String username;
+        private LocalTime lastUpdate;
+        private Long clockOffset;
+        private OldCipher cipher;
+        private boolean verification;
+    }
+
+    private static class OldPost implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private String username;
+        private int Id;
+        private LocalTime timestamp;
+        private String content;
+        private OldCipher cipher;
+        private boolean verification;
+    }
+
+    private static class OldCipher implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private byte[] sign;
+    }
+
+    // Reads the old classes in place of the current ones with the same name
+    private static class OldInputStream extends ObjectInputStream {
+        private OldInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass descriptor = super.readClassDescriptor();
+            Class<?> old = OLD_CLASSES.get(descriptor.getName());
+            return old == null ? descriptor : ObjectStreamClass.lookup(old);
+        }
+    }
+
+    private LegacyTimelines() {}
+
+    // Files of the folder that aren't the current store's, the ones that can't be read are left alone
+    static List<File> find(File folder) {
+        List<File> files = new ArrayList<>();
+        File[] candidates = folder.listFiles(File::isFile);
+        if (candidates == null)
+            return files;
+        for (File file : candidates) {
+            String name = file.getName();
+            if (name.startsWith("timelines.") || name.startsWith("segment") || name.endsWith(".tmp"))
+                continue;
+            files.add(file);
+        }
+        return files;
+    }
+
+    // The timeline saved in the file, null if it isn't one
+    static Timeline read(File file) {
+        OldTimeline old;
+        try (ObjectInputStream in = new OldInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            old = (OldTimeline) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            return null;
+        }
+        if (old.username == null || old.posts == null)
+            return null;
+
+        // posts keep their id and time, each one is a change of its own
+        List<OldPost> oldPosts = new ArrayList<>(old.posts.values());
+        oldPosts.sort(Comparator.comparingInt(post -> post.Id));
+        List<Post> posts = new ArrayList<>();
+        long version = 0;
+        for (OldPost oldPost : oldPosts) {
+            if (oldPost.content == null || oldPost.timestamp == null)
+                continue;
+            Post post = new Post(oldPost.Id, old.username, oldPost.content, oldPost.timestamp);
+            post.setVersion(++version);
+            posts.add(post);
+        }
+
+        Timeline timeline = new Timeline(old.username, old.clockOffset == null ? 0L : old.clockOffset);
+        timeline.applyDelta(new TimelineDelta(old.username, 0, version, old.lastPostId, old.lastUpdate, posts,
+                Map.of(), new Cipher()));
+        return timeline;
+    }
+}
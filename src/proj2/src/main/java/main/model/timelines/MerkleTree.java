@@ -0,0 +1,55 @@
+package main.model.timelines;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+// Merkle tree over the stored timelines, used by neighbours to find where their replicas differ
+// Root => Hash of each timeline => Hash of each bucket of posts (leaves, see Timeline.getBucketHashes)
+public class MerkleTree {
+    private final Map<String, Long> timelineHashes; // Username => Hash of the timeline
+    private final long root;
+
+    public MerkleTree(Collection<Timeline> timelines) {
+        this(timelines.stream().collect(Collectors.toMap(Timeline::getUsername, Timeline::getHash)));
+    }
+
+    public MerkleTree(Map<String, Long> timelineHashes) {
+        this.timelineHashes = timelineHashes;
+
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (String username : new TreeSet<>(this.timelineHashes.keySet()))
+            hasher.putString(username, StandardCharsets.UTF_8).putLong(this.timelineHashes.get(username));
+        this.root = hasher.hash().asLong();
+    }
+
+    public long getRoot() {
+        return root;
+    }
+
+    public Map<String, Long> getTimelineHashes() {
+        return timelineHashes;
+    }
+
+    // Timelines that we both store but whose hashes differ
+    public Set<String> diff(Map<String, Long> otherHashes) {
+        Set<String> differ = new HashSet<>();
+        for (Map.Entry<String, Long> entry : otherHashes.entrySet()) {
+            Long ours = this.timelineHashes.get(entry.getKey());
+            if (ours != null && !ours.equals(entry.getValue()))
+                differ.add(entry.getKey());
+        }
+        return differ;
+    }
+
+    public static Set<Integer> diffBuckets(long[] ours, long[] theirs) {
+        Set<Integer> differ = new HashSet<>();
+        for (int i = 0; i < ours.length; ++i)
+            if (i >= theirs.length || ours[i] != theirs[i])
+                differ.add(i);
+        return differ;
+    }
+}
@@ -2,28 +2,40 @@ package main.model.timelines;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.time.LocalTime;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.Set;
 
+// Kept compact, peers hold the posts of every timeline they cache: the time as nanoseconds of the day,
+// the content as UTF-8 and the signature inline. Posts travel on their own (to subscribers, in search and range
+// hits), so each one still names its owner. Only the String is shared by the posts of a timeline
+// (see shareUsername), each post keeps the reference.
 public class Post implements Serializable, Comparable<Post> {
     @Serial
     private static final long serialVersionUID = 1L;
 
-    private final String username;
+    private String username;
     private final int Id;
-    private final LocalTime timestamp;
-    private String content;
-    private final Cipher cipher;
+    private final long timestamp; // nanoseconds of the day
+    private byte[] content; // UTF-8
+    private byte[] sign; // null if not signed
+    private transient PrivateKey signer; // key of the signature we made, unknown for received ones
     private boolean verification;
+    private long version; // version of the timeline when this post was last changed
 
     public Post(int Id, String username, String content) {
+        this(Id, username, content, LocalTime.now());
+    }
+
+    // Post made earlier, see LegacyTimelines
+    Post(int Id, String username, String content, LocalTime timestamp) {
         this.username = username;
         this.Id = Id;
-        this.timestamp = LocalTime.now();
-        this.content = content;
-        this.cipher = new Cipher();
+        this.timestamp = timestamp.toNanoOfDay();
+        this.content = content.getBytes(StandardCharsets.UTF_8);
     }
 
     public boolean update(String newContent) {
@@ -31,16 +43,23 @@ public class Post implements Serializable, Comparable<Post> {
             System.err.println("ERROR: Empty content not allowed.");
             return false;
         }
-        this.content = newContent;
+        this.content = newContent.getBytes(StandardCharsets.UTF_8);
+        // signed the old content
+        this.sign = null;
+        this.signer = null;
         return true;
     }
 
     public void addSignature(PrivateKey privateKey) {
-        this.cipher.addSignature(this.getPostContent(), privateKey);
+        byte[] signed = Cipher.sign(this.getPostContent(), privateKey);
+        if (signed != null) {
+            this.sign = signed;
+            this.signer = privateKey;
+        }
     }
 
     public void verifySignature(PublicKey publicKey) {
-        if(this.cipher.verifySignature(this.getPostContent(), publicKey)){
+        if(Cipher.verify(this.getPostContent(), sign, publicKey)){
             this.verification = true;
         }
         else{
@@ -49,19 +68,40 @@ public class Post implements Serializable, Comparable<Post> {
     }
 
     public boolean hasSignature() {
-        return cipher.hasSignature();
+        return sign != null;
     }
 
+    public boolean isSignedBy(PrivateKey privateKey) {
+        return sign != null && privateKey.equals(signer);
+    }
+
+    // Same matching as the index of the timeline (see PostIndex): whole words, not a substring of the content
     public boolean matchesSearch(String search) {
-        return content.toLowerCase().contains(search.toLowerCase());
+        Set<String> tokens = PostIndex.tokenize(search);
+        return !tokens.isEmpty() && PostIndex.tokenize(this.getContent()).containsAll(tokens);
+    }
+
+    // Points the owner at the timeline's copy of the username, so that posts read from a message or from disk
+    // don't keep a String each. The field itself stays, a reference per post
+    void shareUsername(String username) {
+        if (username.equals(this.username))
+            this.username = username;
     }
 
     public int getId() {
         return Id;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public LocalTime getTimestamp() {
-        return timestamp;
+        return LocalTime.ofNanoOfDay(timestamp);
     }
 
     public String getUsername() {
@@ -69,20 +109,25 @@ public class Post implements Serializable, Comparable<Post> {
     }
 
     public String getContent() {
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
+    // Without decoding it
+    byte[] getContentBytes() {
         return content;
     }
 
     public String getPostContent(){
         return  "\t\tID: " + Id + ": " +
                 "\n\t\tuser: " + username +
-                "\n\t\t\tTimestamp: " + timestamp +
-                "\n\t\t\tContent: '" + content + '\'';
+                "\n\t\t\tTimestamp: " + this.getTimestamp() +
+                "\n\t\t\tContent: '" + this.getContent() + '\'';
     }
 
     @Override
     public String toString() {
         return  this.getPostContent() +
-                "\n\tVerified: \n\t\t" + verification + "\n\tSign: \n\t\t" + Arrays.toString(this.cipher.getSign());
+                "\n\tVerified: \n\t\t" + verification + "\n\tSign: \n\t\t" + Arrays.toString(this.sign);
     }
 
     public boolean isVerified() {
@@ -94,19 +139,19 @@ public class Post implements Serializable, Comparable<Post> {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Post post = (Post) o;
-        return Id == post.Id && Objects.equals(timestamp, post.timestamp) && Objects.equals(content, post.content)
+        return Id == post.Id && timestamp == post.timestamp && Arrays.equals(content, post.content)
                 && Objects.equals(username, post.username);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(Id, timestamp, content);
+        return Objects.hash(Id, timestamp, Arrays.hashCode(content));
     }
 
 
     @Override
     public int compareTo(Post o) {
-        return this.timestamp.compareTo(o.timestamp);
+        return Long.compare(this.timestamp, o.timestamp);
     }
 
     public void setVerification(boolean verification) {
@@ -0,0 +1,233 @@
+package main.model.timelines;
+
+import java.io.*;
+import java.util.*;
+
+// Posts and tombstones of a timeline by id. Ids are given in order by the owner (see Timeline.addPost), so both are
+// kept in arrays indexed by id, without boxed keys or a node per entry, and are walked in id order.
+// Deleted ids are marked in a bitmap, the version of each deletion is kept next to it.
+// Ids come from other peers, so the arrays only grow by a bounded step: ids far past the end are kept in sorted maps
+// instead, so that a single hostile id can't make us allocate an array for it.
+// Only the live entries are serialized, the arrays are rebuilt when read.
+public class PostArray implements Serializable, Iterable<Post> {
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_GAP = 1024; // ids past the end of an array that still grow it
+
+    private transient Post[] posts; // Post id => Post, null if deleted or never received
+    private transient TreeMap<Integer, Post> sparsePosts; // ids too far past the end of the array
+    private transient int size;
+    private transient BitSet deleted; // Post ids with a tombstone
+    private transient long[] deletions; // Post id => Version of its deletion, if deleted
+    private transient TreeMap<Integer, Long> sparseDeletions; // ids too far past the end of the bitmap
+
+    public PostArray() {
+        this.init();
+    }
+
+    private void init() {
+        this.posts = new Post[INITIAL_CAPACITY];
+        this.sparsePosts = new TreeMap<>();
+        this.size = 0;
+        this.deleted = new BitSet();
+        this.deletions = new long[INITIAL_CAPACITY];
+        this.sparseDeletions = new TreeMap<>();
+    }
+
+    // The array can hold the id, growing it at most to twice its size (or the number of entries) plus MAX_GAP
+    private static boolean fits(int id, int length, int count) {
+        return id >= 0 && (id < length || (long) id < 2L * Math.max(length, count) + MAX_GAP);
+    }
+
+    private static int grownLength(int id, int length) {
+        return (int) Math.max(id + 1L, Math.min(2L * length, Integer.MAX_VALUE - 8));
+    }
+
+    // Posts
+
+    public Post get(int postId) {
+        if (postId >= 0 && postId < this.posts.length && this.posts[postId] != null)
+            return this.posts[postId];
+        return this.sparsePosts.isEmpty() ? null : this.sparsePosts.get(postId);
+    }
+
+    // Returns the post it replaced, if any
+    public Post put(Post post) {
+        int postId = post.getId();
+        Post previous;
+        if (this.sparsePosts.containsKey(postId) || !fits(postId, this.posts.length, this.size)) {
+            previous = this.sparsePosts.put(postId, post);
+        } else {
+            if (postId >= this.posts.length)
+                this.posts = Arrays.copyOf(this.posts, grownLength(postId, this.posts.length));
+            previous = this.posts[postId];
+            this.posts[postId] = post;
+        }
+        if (previous == null)
+            ++this.size;
+        return previous;
+    }
+
+    public Post remove(int postId) {
+        Post previous;
+        if (postId >= 0 && postId < this.posts.length && this.posts[postId] != null) {
+            previous = this.posts[postId];
+            this.posts[postId] = null;
+        } else {
+            previous = this.sparsePosts.remove(postId);
+        }
+        if (previous != null)
+            --this.size;
+        return previous;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    // In id order
+    public List<Post> values() {
+        List<Post> values = new ArrayList<>(this.size);
+        for (Post post : this)
+            values.add(post);
+        return values;
+    }
+
+    @Override
+    public Iterator<Post> iterator() {
+        Iterator<Post> dense = new Iterator<>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < posts.length && posts[from] == null)
+                    ++from;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < posts.length;
+            }
+
+            @Override
+            public Post next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Post post = posts[next];
+                next = advance(next + 1);
+                return post;
+            }
+        };
+        if (this.sparsePosts.isEmpty())
+            return dense;
+
+        // rare: merge both in id order
+        List<Post> merged = new ArrayList<>(this.size);
+        dense.forEachRemaining(merged::add);
+        merged.addAll(this.sparsePosts.values());
+        merged.sort(Comparator.comparingInt(Post::getId));
+        return merged.iterator();
+    }
+
+    // Tombstones
+
+    public boolean isDeleted(int postId) {
+        return (postId >= 0 && this.deleted.get(postId)) || this.sparseDeletions.containsKey(postId);
+    }
+
+    // Version of the deletion of the post, 0 if it wasn't deleted
+    public long getDeletion(int postId) {
+        if (postId >= 0 && this.deleted.get(postId))
+            return this.deletions[postId];
+        return this.sparseDeletions.getOrDefault(postId, 0L);
+    }
+
+    // Keeps the latest deletion of the post
+    public void delete(int postId, long version) {
+        if (this.sparseDeletions.containsKey(postId)
+                || !fits(postId, this.deletions.length, this.sparseDeletions.size() + this.deleted.cardinality())) {
+            this.sparseDeletions.merge(postId, version, Math::max);
+            return;
+        }
+        if (postId >= this.deletions.length)
+            this.deletions = Arrays.copyOf(this.deletions, grownLength(postId, this.deletions.length));
+        if (!this.deleted.get(postId) || this.deletions[postId] < version)
+            this.deletions[postId] = version;
+        this.deleted.set(postId);
+    }
+
+    // First deleted post id from the given one, -1 if there is none. Walk with nextDeleted(id + 1), which
+    // overflows to a negative id past Integer.MAX_VALUE and ends the walk
+    public int nextDeleted(int fromId) {
+        if (fromId < 0)
+            return -1;
+        int dense = this.deleted.nextSetBit(fromId);
+        Integer sparse = this.sparseDeletions.ceilingKey(fromId);
+        if (sparse == null)
+            return dense;
+        return dense < 0 ? sparse : Math.min(dense, sparse);
+    }
+
+    public int deletedCount() {
+        return this.deleted.cardinality() + this.sparseDeletions.size();
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(this.size);
+        for (Post post : this)
+            out.writeObject(post);
+        out.writeInt(this.deletedCount());
+        for (int postId = this.deleted.nextSetBit(0); postId >= 0; postId = this.deleted.nextSetBit(postId + 1)) {
+            out.writeInt(postId);
+            out.writeLong(this.deletions[postId]);
+        }
+        for (Map.Entry<Integer, Long> deletion : this.sparseDeletions.entrySet()) {
+            out.writeInt(deletion.getKey());
+            out.writeLong(deletion.getValue());
+        }
+    }
+
+    @Serial
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.init();
+        int size = in.readInt();
+        for (int i = 0; i < size; ++i)
+            this.put((Post) in.readObject());
+        int deletedCount = in.readInt();
+        for (int i = 0; i < deletedCount; ++i)
+            this.delete(in.readInt(), in.readLong());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PostArray other = (PostArray) o;
+        if (this.size != other.size)
+            return false;
+        for (Post post : this)
+            if (!post.equals(other.get(post.getId())))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (Post post : this)
+            hash += post.getId() ^ post.hashCode();
+        return hash;
+    }
+
+    // Same form as a map of the posts by id, timelines are signed over it
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        for (Post post : this)
+            joiner.add(post.getId() + "=" + post);
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,135 @@
+package main.model.timelines;
+
+import java.util.*;
+
+// Inverted index of the posts of a timeline: token => ids of the posts that contain it (posting list)
+// Kept up to date by every change to the timeline, so that a search costs the posting lists of its tokens
+// instead of going through the content of every post.
+// Tokens are the lower case words of the content, a post matches a search if it has every word of it.
+// Words match whole: "hell" doesn't find "hello", as a substring of the content did before the index. Searches are
+// routed by the tokens of the peers (see PeerInfo.getNeighboursWithTerms), which can only be looked up whole.
+// Postings keep how often the token occurs in each post, and the index the length of each post, for ranking.
+public class PostIndex {
+    private final Map<String, Map<Integer, Integer>> postings; // Token => Post id => Occurrences in the post
+    private final Map<Integer, Set<String>> tokens; // Post id => Tokens, to remove the post once its content changed
+    private final Map<Integer, Integer> lengths; // Post id => Tokens in the post, repeated ones included
+    private long totalLength;
+
+    public PostIndex() {
+        this.postings = new HashMap<>();
+        this.tokens = new HashMap<>();
+        this.lengths = new HashMap<>();
+        this.totalLength = 0;
+    }
+
+    public PostIndex(Collection<Post> posts) {
+        this();
+        for (Post post : posts)
+            this.add(post);
+    }
+
+    // Replaces what was indexed for the post, if anything
+    public void add(Post post) {
+        this.remove(post.getId());
+        List<String> words = tokenList(post.getContent());
+        for (String token : words)
+            this.postings.computeIfAbsent(token, t -> new HashMap<>()).merge(post.getId(), 1, Integer::sum);
+        this.tokens.put(post.getId(), new HashSet<>(words));
+        this.lengths.put(post.getId(), words.size());
+        this.totalLength += words.size();
+    }
+
+    public void remove(int postId) {
+        Set<String> postTokens = this.tokens.remove(postId);
+        if (postTokens == null)
+            return;
+        for (String token : postTokens) {
+            Map<Integer, Integer> ids = this.postings.get(token);
+            ids.remove(postId);
+            if (ids.isEmpty())
+                this.postings.remove(token);
+        }
+        this.totalLength -= this.lengths.remove(postId);
+    }
+
+    // Tokens indexed for the post, empty if it isn't indexed
+    public Set<String> getTokens(int postId) {
+        return this.tokens.getOrDefault(postId, Set.of());
+    }
+
+    public boolean contains(String token) {
+        return this.postings.containsKey(token);
+    }
+
+    public Set<String> getTokens() {
+        return this.postings.keySet();
+    }
+
+    // Posting list of the token
+    public Set<Integer> getPosts(String token) {
+        Map<Integer, Integer> ids = this.postings.get(token);
+        return ids == null ? Set.of() : ids.keySet();
+    }
+
+    public int getFrequency(String token, int postId) {
+        Map<Integer, Integer> ids = this.postings.get(token);
+        return ids == null ? 0 : ids.getOrDefault(postId, 0);
+    }
+
+    public int getLength(int postId) {
+        return this.lengths.getOrDefault(postId, 0);
+    }
+
+    // Indexed posts
+    public int size() {
+        return this.lengths.size();
+    }
+
+    public long getTotalLength() {
+        return this.totalLength;
+    }
+
+    // Ids of the posts that contain every token of the search, in ascending order
+    public SortedSet<Integer> search(String search) {
+        return this.search(tokenize(search));
+    }
+
+    public SortedSet<Integer> search(Collection<String> searchTokens) {
+        List<Set<Integer>> lists = new ArrayList<>();
+        for (String token : searchTokens) {
+            Set<Integer> ids = this.getPosts(token);
+            if (ids.isEmpty())
+                return new TreeSet<>();
+            lists.add(ids);
+        }
+        if (lists.isEmpty())
+            return new TreeSet<>();
+
+        // intersect starting from the shortest list
+        lists.sort(Comparator.comparingInt(Set::size));
+        SortedSet<Integer> result = new TreeSet<>(lists.get(0));
+        for (int i = 1; i < lists.size() && !result.isEmpty(); ++i)
+            result.retainAll(lists.get(i));
+        return result;
+    }
+
+    public static Set<String> tokenize(String text) {
+        return new HashSet<>(tokenList(text));
+    }
+
+    // Lower case runs of letters and digits, in order
+    public static List<String> tokenList(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); ++i) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0)
+                start = i;
+            else if (!inWord && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+}
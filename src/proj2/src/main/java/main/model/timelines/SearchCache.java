@@ -0,0 +1,81 @@
+package main.model.timelines;
+
+import java.util.*;
+
+// Results of recent searches by normalized query (see SearchQuery.toString), least recently used ones evicted
+// An entry is dropped as soon as a post with one of the terms of its query changes, so that it is never stale.
+// Only the scores may lag behind, they drift with changes to posts that don't match the query.
+// Entries keep where the posts are, not the posts, so that they don't keep the posts of timelines dropped from
+// memory by TimelineCache. Posts are looked up again on a hit.
+public class SearchCache {
+    public static final int SIZE = 128; // entries
+
+    // Post found by a search: its owner, id and score
+    public record Hit(String owner, int postId, double score) {
+        public Hit(SearchResult result) {
+            this(result.getPost().getUsername(), result.getPost().getId(), result.getScore());
+        }
+    }
+
+    private static class Entry {
+        private final List<Hit> results;
+        private final Set<String> terms;
+
+        private Entry(List<Hit> results, Set<String> terms) {
+            this.results = results;
+            this.terms = terms;
+        }
+    }
+
+    private final int size;
+    private final LinkedHashMap<String, Entry> entries; // access ordered, eldest first
+    private final Map<String, Set<String>> keys; // Term => Keys of the entries whose query has it
+
+    public SearchCache(int size) {
+        this.size = size;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.keys = new HashMap<>();
+    }
+
+    public synchronized List<Hit> get(String key) {
+        Entry entry = this.entries.get(key);
+        return entry == null ? null : entry.results;
+    }
+
+    // terms: every token of the query, excluded ones included
+    public synchronized void put(String key, Set<String> terms, List<Hit> results) {
+        this.remove(key);
+        this.entries.put(key, new Entry(results, terms));
+        for (String term : terms)
+            this.keys.computeIfAbsent(term, t -> new HashSet<>()).add(key);
+
+        if (this.entries.size() > this.size)
+            this.remove(this.entries.keySet().iterator().next());
+    }
+
+    // Drops the entries whose query has any of the terms
+    public synchronized void invalidate(Collection<String> terms) {
+        for (String term : terms) {
+            Set<String> termKeys = this.keys.get(term);
+            if (termKeys != null)
+                for (String key : new ArrayList<>(termKeys))
+                    this.remove(key);
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = this.entries.remove(key);
+        if (entry == null)
+            return;
+        for (String term : entry.terms) {
+            Set<String> termKeys = this.keys.get(term);
+            termKeys.remove(key);
+            if (termKeys.isEmpty())
+                this.keys.remove(term);
+        }
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+}
@@ -0,0 +1,166 @@
+package main.model.timelines;
+
+import java.time.LocalTime;
+import java.util.*;
+
+// Search index of our timeline and of the ones cached from other peers while they are kept in memory, so that it
+// stays within the budget of the cache (see TimelineCache.Listener)
+// Tokens point to the owners whose timeline has them, and each owner has the index of its posts (see PostIndex),
+// tagged with the last update of the copy that was indexed. A copy older than the indexed one is ignored,
+// so that indexing in the background never undoes a newer change.
+public class SearchIndex {
+    // BM25 parameters: saturation of the term frequency and normalization by the length of the post
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final Map<String, Set<String>> owners; // Token => Owners with posts that have it
+    private final Map<String, PostIndex> indexes; // Owner => Index of its posts
+    private final Map<String, LocalTime> freshness; // Owner => Last update of the indexed copy
+
+    public SearchIndex() {
+        this.owners = new HashMap<>();
+        this.indexes = new HashMap<>();
+        this.freshness = new HashMap<>();
+    }
+
+    // Indexes the whole timeline, replacing what was indexed for its owner unless it is newer
+    // Changes to the index return the tokens whose posts changed
+    public synchronized Set<String> put(Timeline timeline) {
+        String owner = timeline.getUsername();
+        LocalTime indexed = this.freshness.get(owner);
+        if (indexed != null && indexed.isAfter(timeline.getLastUpdate()))
+            return Set.of();
+
+        Set<String> touched = this.remove(owner);
+        PostIndex index = new PostIndex(timeline.getPosts());
+        for (String token : index.getTokens())
+            this.owners.computeIfAbsent(token, t -> new HashSet<>()).add(owner);
+        touched.addAll(index.getTokens());
+        this.indexes.put(owner, index);
+        this.freshness.put(owner, timeline.getLastUpdate());
+        return touched;
+    }
+
+    // Indexes the posts touched by the change, the timeline must already have it applied
+    public synchronized Set<String> update(Timeline timeline, TimelineDelta change) {
+        String owner = timeline.getUsername();
+        PostIndex index = this.indexes.get(owner);
+        if (index == null)
+            return this.put(timeline);
+
+        Set<Integer> changed = new HashSet<>(change.getTombstones().keySet());
+        for (Post post : change.getPosts())
+            changed.add(post.getId());
+
+        Set<String> touched = new HashSet<>();
+        for (int postId : changed) {
+            touched.addAll(index.getTokens(postId));
+            Post post = timeline.getPost(postId); // the change may have been older than what we hold
+            if (post == null)
+                index.remove(postId);
+            else
+                index.add(post);
+            touched.addAll(index.getTokens(postId));
+        }
+        for (String token : touched) {
+            if (index.contains(token))
+                this.owners.computeIfAbsent(token, t -> new HashSet<>()).add(owner);
+            else
+                this.removeOwner(token, owner);
+        }
+        this.freshness.put(owner, timeline.getLastUpdate());
+        return touched;
+    }
+
+    public synchronized Set<String> remove(String owner) {
+        PostIndex index = this.indexes.remove(owner);
+        this.freshness.remove(owner);
+        if (index == null)
+            return new HashSet<>();
+        for (String token : index.getTokens())
+            this.removeOwner(token, owner);
+        return new HashSet<>(index.getTokens());
+    }
+
+    private void removeOwner(String token, String owner) {
+        Set<String> tokenOwners = this.owners.get(token);
+        if (tokenOwners == null)
+            return;
+        tokenOwners.remove(owner);
+        if (tokenOwners.isEmpty())
+            this.owners.remove(token);
+    }
+
+    // Owner => Post id => Score of the posts that may match the query, the content of phrases isn't checked
+    // Scored with BM25 over every indexed post
+    public synchronized Map<String, Map<Integer, Double>> search(SearchQuery query) {
+        Map<String, Map<Integer, Double>> hits = new HashMap<>();
+        for (SearchQuery.Clause clause : query.getClauses()) {
+            Set<String> required = clause.getRequiredTokens();
+            Set<String> excluded = clause.getExcludedTokens();
+            for (String owner : this.getOwners(required)) {
+                PostIndex index = this.indexes.get(owner);
+                for (int postId : index.search(required))
+                    if (Collections.disjoint(index.getTokens(postId), excluded))
+                        hits.computeIfAbsent(owner, o -> new HashMap<>()).put(postId, 0.0);
+            }
+        }
+        if (hits.isEmpty())
+            return hits;
+
+        long posts = 0, totalLength = 0;
+        for (PostIndex index : this.indexes.values()) {
+            posts += index.size();
+            totalLength += index.getTotalLength();
+        }
+        double averageLength = Math.max(1, (double) totalLength / posts);
+        Map<String, Double> idfs = new HashMap<>();
+        for (String term : query.getTerms()) {
+            long frequency = 0; // posts with the term
+            for (String owner : this.owners.getOrDefault(term, Set.of()))
+                frequency += this.indexes.get(owner).getPosts(term).size();
+            idfs.put(term, Math.log(1 + (posts - frequency + 0.5) / (frequency + 0.5)));
+        }
+
+        for (Map.Entry<String, Map<Integer, Double>> hit : hits.entrySet()) {
+            PostIndex index = this.indexes.get(hit.getKey());
+            for (Map.Entry<Integer, Double> post : hit.getValue().entrySet()) {
+                double norm = K1 * (1 - B + B * index.getLength(post.getKey()) / averageLength);
+                double score = 0;
+                for (Map.Entry<String, Double> idf : idfs.entrySet()) {
+                    int tf = index.getFrequency(idf.getKey(), post.getKey());
+                    score += idf.getValue() * tf * (K1 + 1) / (tf + norm);
+                }
+                post.setValue(score);
+            }
+        }
+        return hits;
+    }
+
+    // Owners with posts that have every token
+    private Set<String> getOwners(Set<String> tokens) {
+        Set<String> candidates = null;
+        for (String token : tokens) {
+            Set<String> tokenOwners = this.owners.getOrDefault(token, Set.of());
+            if (candidates == null)
+                candidates = new HashSet<>(tokenOwners);
+            else
+                candidates.retainAll(tokenOwners);
+        }
+        return candidates == null ? Set.of() : candidates;
+    }
+
+    // Every indexed token
+    public synchronized Set<String> getTokens() {
+        return new HashSet<>(this.owners.keySet());
+    }
+
+    public synchronized boolean contains(String owner) {
+        return this.indexes.containsKey(owner);
+    }
+
+    // Last update of the indexed copy of the owner's timeline, null if it isn't indexed
+    public synchronized LocalTime getFreshness(String owner) {
+        return this.freshness.get(owner);
+    }
+}
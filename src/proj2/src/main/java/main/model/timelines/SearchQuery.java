@@ -0,0 +1,176 @@
+package main.model.timelines;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+// Query of a search: clauses separated by OR, a post matches if it matches any of them
+// A clause matches posts with every word and "quoted phrase" of it and none of the ones after a - or NOT.
+// e.g. distributed "peer to peer" -blockchain OR p2p
+// Words are matched whole and regardless of case (see PostIndex), part of a word doesn't match.
+// The index finds the candidates from the words, phrases are then checked on the content of the candidates.
+public class SearchQuery {
+    static class Clause {
+        private final List<List<String>> required; // phrases, a word is a phrase of one token
+        private final List<List<String>> excluded;
+
+        private Clause() {
+            this.required = new ArrayList<>();
+            this.excluded = new ArrayList<>();
+        }
+
+        // Tokens that a matching post has for sure
+        Set<String> getRequiredTokens() {
+            Set<String> tokens = new HashSet<>();
+            for (List<String> phrase : this.required)
+                tokens.addAll(phrase);
+            return tokens;
+        }
+
+        // Tokens that a matching post can't have, excluded phrases are only checked on the content
+        Set<String> getExcludedTokens() {
+            Set<String> tokens = new HashSet<>();
+            for (List<String> phrase : this.excluded)
+                if (phrase.size() == 1)
+                    tokens.add(phrase.get(0));
+            return tokens;
+        }
+
+        // Phrases in order of their text, excluded ones after a -
+        @Override
+        public String toString() {
+            List<String> parts = new ArrayList<>();
+            for (List<String> phrase : this.required)
+                parts.add(phrase.size() == 1 ? phrase.get(0) : '"' + String.join(" ", phrase) + '"');
+            for (List<String> phrase : this.excluded)
+                parts.add("-" + (phrase.size() == 1 ? phrase.get(0) : '"' + String.join(" ", phrase) + '"'));
+            Collections.sort(parts);
+            return String.join(" ", parts);
+        }
+
+        private boolean matches(List<String> content) {
+            for (List<String> phrase : this.required)
+                if (Collections.indexOfSubList(content, phrase) < 0)
+                    return false;
+            for (List<String> phrase : this.excluded)
+                if (Collections.indexOfSubList(content, phrase) >= 0)
+                    return false;
+            return true;
+        }
+    }
+
+    private final List<Clause> clauses;
+
+    private SearchQuery(List<Clause> clauses) {
+        this.clauses = clauses;
+    }
+
+    public static SearchQuery parse(String search) {
+        List<Clause> clauses = new ArrayList<>();
+        Clause clause = new Clause();
+        boolean negate = false; // after a NOT
+        int i = 0;
+        while (i < search.length()) {
+            char c = search.charAt(i);
+            if (Character.isWhitespace(c)) {
+                ++i;
+                continue;
+            }
+
+            boolean excluded = negate;
+            negate = false;
+            if (c == '-') {
+                excluded = true;
+                if (++i == search.length())
+                    break;
+                c = search.charAt(i);
+            }
+
+            String text;
+            if (c == '"') {
+                int end = search.indexOf('"', i + 1);
+                if (end < 0)
+                    end = search.length();
+                text = search.substring(i + 1, end);
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < search.length() && !Character.isWhitespace(search.charAt(end)))
+                    ++end;
+                text = search.substring(i, end);
+                i = end;
+                if (!excluded && text.equals("OR")) {
+                    clauses.add(clause);
+                    clause = new Clause();
+                    continue;
+                } else if (!excluded && text.equals("AND")) {
+                    continue;
+                } else if (!excluded && text.equals("NOT")) {
+                    negate = true;
+                    continue;
+                }
+            }
+
+            List<String> phrase = PostIndex.tokenList(text);
+            if (!phrase.isEmpty())
+                (excluded ? clause.excluded : clause.required).add(phrase);
+        }
+        clauses.add(clause);
+
+        // a clause with nothing required would match every post
+        clauses.removeIf(c -> c.required.isEmpty());
+        return new SearchQuery(clauses);
+    }
+
+    List<Clause> getClauses() {
+        return this.clauses;
+    }
+
+    // Tokens that add to the score of a post
+    public Set<String> getTerms() {
+        Set<String> terms = new HashSet<>();
+        for (Clause clause : this.clauses)
+            terms.addAll(clause.getRequiredTokens());
+        return terms;
+    }
+
+    // Every token of the query, excluded ones included
+    public Set<String> getTokens() {
+        Set<String> tokens = new HashSet<>();
+        for (Clause clause : this.clauses) {
+            tokens.addAll(clause.getRequiredTokens());
+            for (List<String> phrase : clause.excluded)
+                tokens.addAll(phrase);
+        }
+        return tokens;
+    }
+
+    // Whether a peer with the given terms may have posts for the query: it has every term of a clause
+    public boolean mightMatch(Predicate<String> hasTerm) {
+        for (Clause clause : this.clauses)
+            if (clause.getRequiredTokens().stream().allMatch(hasTerm))
+                return true;
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return this.clauses.isEmpty();
+    }
+
+    // Normalized query: the same for queries that only differ in case, punctuation or order
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        for (Clause clause : this.clauses)
+            parts.add(clause.toString());
+        Collections.sort(parts);
+        return String.join(" OR ", parts);
+    }
+
+    public boolean matches(Post post) {
+        List<String> content = PostIndex.tokenList(post.getContent());
+        for (Clause clause : this.clauses)
+            if (clause.matches(content))
+                return true;
+        return false;
+    }
+}
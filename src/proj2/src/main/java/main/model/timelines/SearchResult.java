@@ -0,0 +1,36 @@
+package main.model.timelines;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+// Post found by a search, with its score (see SearchIndex)
+public class SearchResult implements Serializable, Comparable<SearchResult> {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final Post post;
+    private final double score;
+
+    public SearchResult(Post post, double score) {
+        this.post = post;
+        this.score = score;
+    }
+
+    public Post getPost() {
+        return post;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public int compareTo(SearchResult o) {
+        return Double.compare(this.score, o.score);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.3f", score) + "\n" + post;
+    }
+}
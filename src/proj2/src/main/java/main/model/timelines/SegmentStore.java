@@ -0,0 +1,534 @@
+package main.model.timelines;
+
+import main.controller.message.MessageBuilder;
+import main.model.Compression;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Storage of the timelines cached from other peers, kept in memory-mapped segment files instead of the heap
+// The heap only holds an index entry per timeline, timelines are decoded when someone asks for them.
+// Each record is a whole timeline or a change to it that points to the previous record of the same timeline,
+// so that a change costs its own size. Once a chain has MAX_CHAIN changes, the whole timeline is written again.
+// Record: [int length][int CRC32C][byte type][long previous][int chain][long lastUpdate][long hash][username][payload]
+// The checksum covers what follows the length. Records appended after the manifest are checked when scanned,
+// the others when decoded, a corrupt record only costs the timeline it belongs to. Like the log of TimelineStore,
+// the scan stops at the first bad record, its length can't be trusted, and new records are written over it.
+// Payloads are blocks of Compression, compressed above its threshold.
+// The index is written to a manifest on close, so that opening reads the manifest and only scans the records
+// appended after it. Segments are paged in by a background warm-up, timelines are still decoded on first access.
+// Records left behind by newer ones are reclaimed by compaction, which rewrites the live timelines of the segments
+// that are no longer written into the current one and deletes them, so cache churn costs no file per timeline.
+// The ids of deleted segments are given to new ones, so segments start with a sequence number that gives the
+// order in which they were written: [long sequence][records].
+public class SegmentStore {
+    public static final String SEGMENT = "segment-%d.seg";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d{1,9})\\.seg");
+    private static final int MAX_SEGMENTS = 1 << 16; // ids are reused (see startSegment), so they stay far below
+    public static final String MANIFEST = "segments.manifest";
+    public static final int SEGMENT_SIZE = 4 << 20; // size of a new segment (in bytes)
+    public static final int MAX_CHAIN = 16; // changes stacked on top of a whole timeline
+    private static final int FRAME = Integer.BYTES + Integer.BYTES; // length and checksum
+    private static final int HEADER = Byte.BYTES + Long.BYTES + Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final int SEGMENT_HEADER = Long.BYTES; // sequence
+    private static final long NONE = -1;
+
+    // Where the latest record of a timeline is, and what the peer needs to know about it without decoding it
+    private static class Entry {
+        private final long position; // segment << 32 | offset
+        private final int chain; // changes between the latest record and the whole timeline
+        private final long lastUpdate; // nano of day
+        private final long hash;
+        private final int size; // bytes of the records that have to be decoded
+
+        private Entry(long position, int chain, long lastUpdate, long hash, int size) {
+            this.position = position;
+            this.chain = chain;
+            this.lastUpdate = lastUpdate;
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    private final File folder;
+    private final Map<String, Entry> index; // Username => Latest record
+    private final List<MappedByteBuffer> segments; // by id, null once deleted by a compaction until reused
+    private int active = -1; // segment being written
+    private long sequence; // of the segment being written
+    private int writeOffset; // in the segment being written
+    private long live; // bytes of the records in the index
+    private int lastSize; // of the last appended record
+
+    public SegmentStore(File folder) {
+        this.folder = folder;
+        this.index = new ConcurrentHashMap<>();
+        this.segments = new CopyOnWriteArrayList<>();
+        try {
+            this.open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("ERROR: Failed to load cached timelines");
+        }
+    }
+
+    private File segmentFile(int segment) {
+        return new File(folder, String.format(SEGMENT, segment));
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    // Maps every segment and rebuilds the index from the manifest and the records appended after it
+    private void open() throws IOException {
+        int last = -1;
+        File[] files = folder.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            Matcher name = SEGMENT_NAME.matcher(file.getName());
+            if (!name.matches()) // other files, like a copy of a segment, are left alone
+                continue;
+            int segment = Integer.parseInt(name.group(1));
+            if (segment < MAX_SEGMENTS)
+                last = Math.max(last, segment);
+            else
+                System.err.println("Error: Ignoring " + file.getName() + ", not a segment of cached timelines.");
+        }
+        for (int segment = 0; segment <= last; ++segment) // compactions leave gaps in the ids
+            this.segments.add(segmentFile(segment).exists() ? map(segmentFile(segment), 0) : null);
+
+        List<Integer> order = this.inOrder();
+        if (!order.isEmpty())
+            this.sequence = this.segments.get(order.get(order.size() - 1)).getLong(0);
+
+        long end = this.readManifest();
+        if (end == NONE) { // no manifest, read every record
+            this.index.clear();
+            this.live = 0;
+            if (order.isEmpty())
+                return;
+            end = position(order.get(0), SEGMENT_HEADER);
+        }
+        this.scan(order, (int) (end >>> 32), (int) end);
+    }
+
+    // Ids of the segments, in the order they were written
+    private List<Integer> inOrder() {
+        List<Integer> order = new ArrayList<>();
+        for (int segment = 0; segment < this.segments.size(); ++segment)
+            if (this.segments.get(segment) != null)
+                order.add(segment);
+        order.sort(Comparator.comparingLong(segment -> this.segments.get(segment).getLong(0)));
+        return order;
+    }
+
+    // Reads the headers of the records from the given position on, up to the first bad one
+    private void scan(List<Integer> order, int fromSegment, int fromOffset) throws IOException {
+        for (int i = order.indexOf(fromSegment); i < order.size(); ++i) {
+            int segment = order.get(i);
+            MappedByteBuffer buffer = this.segments.get(segment);
+            int offset = segment == fromSegment ? fromOffset : SEGMENT_HEADER;
+            while (offset + FRAME <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length <= 0 || offset + FRAME + length > buffer.capacity())
+                    break; // end of the written records
+                ByteBuffer record = buffer.duplicate().position(offset + FRAME).limit(offset + FRAME + length);
+                if (checksum(record.duplicate()) != buffer.getInt(offset + Integer.BYTES)) {
+                    // torn by a crash, the previous records of the timelines stay their latest
+                    System.err.println("Error: Cached timelines are corrupt in segment " + segment + " after byte "
+                            + offset + ", dropping the rest.");
+                    this.truncate(order.subList(i + 1, order.size()), segment, offset);
+                    return;
+                }
+                StoreRecord.Type type = StoreRecord.Type.values()[record.get()];
+                record.getLong(); // previous record
+                int chain = record.getInt();
+                long lastUpdate = record.getLong();
+                long hash = record.getLong();
+                String username = readString(record);
+
+                int size = FRAME + length;
+                Entry previous = this.index.get(username);
+                if (type == StoreRecord.Type.CHANGE && previous != null)
+                    size += previous.size;
+
+                if (type == StoreRecord.Type.REMOVE)
+                    this.removeEntry(username);
+                else
+                    this.putEntry(username, new Entry(position(segment, offset), chain, lastUpdate, hash, size));
+                offset += FRAME + length;
+            }
+            this.active = segment;
+            this.sequence = buffer.getLong(0);
+            this.writeOffset = offset;
+        }
+    }
+
+    // Drops what follows the position: the rest of its segment is cleared, so that records written over it are
+    // never followed by old ones, and the segments written after it are deleted. Writes go on from the position
+    private void truncate(List<Integer> after, int segment, int offset) throws IOException {
+        MappedByteBuffer buffer = this.segments.get(segment);
+        buffer.put(offset, new byte[buffer.capacity() - offset]);
+        buffer.force();
+        for (int later : after) {
+            this.segments.set(later, null);
+            Files.deleteIfExists(segmentFile(later).toPath());
+        }
+        this.active = segment;
+        this.sequence = buffer.getLong(0);
+        this.writeOffset = offset;
+    }
+
+    // Loads the index written on close, returns the position where records written afterwards start
+    // The records in the manifest were checked when written or scanned, the ones after it are checked by the scan
+    private long readManifest() {
+        File manifest = new File(folder, MANIFEST);
+        if (!manifest.exists())
+            return NONE;
+
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(manifest)), new CRC32C());
+             DataInputStream in = new DataInputStream(checked)) {
+            int active = in.readInt();
+            int writeOffset = in.readInt();
+            if (active >= this.segments.size() || (active >= 0 && this.segments.get(active) == null))
+                return NONE; // segments are gone, the manifest doesn't describe them
+            int entries = in.readInt();
+            for (int i = 0; i < entries; ++i)
+                this.putEntry(in.readUTF(), new Entry(in.readLong(), in.readInt(), in.readLong(), in.readLong(),
+                        in.readInt()));
+            int checksum = (int) checked.getChecksum().getValue();
+            if (in.readInt() != checksum)
+                throw new IOException("corrupt manifest");
+            return active < 0 ? NONE : position(active, writeOffset);
+        } catch (IOException e) {
+            System.err.println("Error: Couldn't read manifest of cached timelines, reading every record.");
+            return NONE;
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        File manifest = new File(folder, MANIFEST);
+        File tmp = new File(manifest.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32C());
+             DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(this.active);
+            out.writeInt(this.writeOffset);
+            out.writeInt(this.index.size());
+            for (Map.Entry<String, Entry> entry : this.index.entrySet()) {
+                Entry e = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(e.position);
+                out.writeInt(e.chain);
+                out.writeLong(e.lastUpdate);
+                out.writeLong(e.hash);
+                out.writeInt(e.size);
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Pages in every segment in the background, in parallel
+    public CompletableFuture<Void> warmUp() {
+        return CompletableFuture.runAsync(() -> this.segments.parallelStream().filter(Objects::nonNull)
+                .forEach(MappedByteBuffer::load));
+    }
+
+    private void putEntry(String username, Entry entry) {
+        Entry previous = this.index.put(username, entry);
+        this.live += entry.size - (previous == null ? 0 : previous.size);
+    }
+
+    private void removeEntry(String username) {
+        Entry previous = this.index.remove(username);
+        if (previous != null)
+            this.live -= previous.size;
+    }
+
+    private static long position(int segment, int offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    // Payloads above the threshold are compressed, each record says whether it is
+    private static byte[] encode(Object payload) throws IOException {
+        return Compression.encode(MessageBuilder.objectToByteArray(payload), true);
+    }
+
+    private static Object decode(byte[] payload) throws IOException, ClassNotFoundException {
+        return MessageBuilder.objectFromByteArray(Compression.decode(payload));
+    }
+
+    // Consumes the buffer
+    private static int checksum(ByteBuffer buffer) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Appends a record and returns its position
+    private synchronized long append(StoreRecord.Type type, long previous, int chain, Timeline timeline,
+                                     String username, byte[] payload) throws IOException {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + Short.BYTES + name.length + payload.length;
+        int size = FRAME + length;
+
+        if (this.active < 0 || this.writeOffset + size > this.segments.get(this.active).capacity())
+            this.startSegment(size);
+        int segment = this.active;
+        ByteBuffer buffer = this.segments.get(segment).duplicate().position(this.writeOffset);
+        buffer.putInt(length)
+                .putInt(0) // checksum, once the rest is written
+                .put((byte) type.ordinal())
+                .putLong(previous)
+                .putInt(chain)
+                .putLong(timeline == null ? 0 : timeline.getLastUpdate().toNanoOfDay())
+                .putLong(timeline == null ? 0 : timeline.getHash())
+                .putShort((short) name.length).put(name)
+                .put(payload);
+        buffer.putInt(this.writeOffset + Integer.BYTES,
+                checksum(buffer.duplicate().position(this.writeOffset + FRAME).limit(this.writeOffset + size)));
+
+        long position = position(segment, this.writeOffset);
+        this.writeOffset += size;
+        this.lastSize = size;
+        return position;
+    }
+
+    // Writes go to a new segment from now on, big enough for a record of the given size
+    // It takes the id of a segment deleted by a compaction, if there is one
+    private void startSegment(int size) throws IOException {
+        int segment = this.segments.indexOf(null);
+        if (segment < 0) {
+            segment = this.segments.size();
+            this.segments.add(null);
+        }
+        MappedByteBuffer buffer = map(segmentFile(segment), Math.max(SEGMENT_SIZE, SEGMENT_HEADER + size));
+        buffer.putLong(0, ++this.sequence);
+        this.segments.set(segment, buffer);
+        this.active = segment;
+        this.writeOffset = SEGMENT_HEADER;
+    }
+
+    public synchronized void put(Timeline timeline) throws IOException {
+        long position = this.append(StoreRecord.Type.TIMELINE, NONE, 0, timeline, timeline.getUsername(),
+                encode(timeline));
+        this.putEntry(timeline.getUsername(), new Entry(position, 0,
+                timeline.getLastUpdate().toNanoOfDay(), timeline.getHash(), this.lastSize));
+    }
+
+    // Stores a change made to the timeline, the timeline must already have it applied
+    public synchronized void update(Timeline timeline, TimelineDelta change) throws IOException {
+        Entry entry = this.index.get(timeline.getUsername());
+        if (entry == null || entry.chain >= MAX_CHAIN) {
+            this.put(timeline);
+            return;
+        }
+
+        long position = this.append(StoreRecord.Type.CHANGE, entry.position, entry.chain + 1, timeline,
+                timeline.getUsername(), encode(change));
+        this.putEntry(timeline.getUsername(), new Entry(position, entry.chain + 1,
+                timeline.getLastUpdate().toNanoOfDay(), timeline.getHash(), entry.size + this.lastSize));
+    }
+
+    public synchronized void remove(String username) throws IOException {
+        if (this.index.containsKey(username)) {
+            this.removeEntry(username);
+            this.append(StoreRecord.Type.REMOVE, NONE, 0, null, username, new byte[0]);
+        }
+    }
+
+    // Compaction
+
+    // Bytes taken by the segments on disk
+    public long getAllocated() {
+        long allocated = 0;
+        for (MappedByteBuffer segment : this.segments)
+            if (segment != null)
+                allocated += segment.capacity();
+        return allocated;
+    }
+
+    public synchronized long getLive() {
+        return this.live;
+    }
+
+    // More than half of the segments are records left behind, and at least a whole segment of them
+    public boolean needsCompaction() {
+        long garbage = this.getAllocated() - this.getLive();
+        return garbage > SEGMENT_SIZE && garbage * 2 > this.getAllocated();
+    }
+
+    // Rewrites the live timelines of every segment but the one being written into it (and the ones after it, as
+    // it fills up), and deletes them
+    // Timelines are moved one at a time, so that writes only wait for the timeline being moved
+    public void compact() throws IOException {
+        List<Integer> old;
+        synchronized (this) {
+            old = this.inOrder();
+            old.remove((Integer) this.active);
+            if (old.isEmpty())
+                return;
+            // the manifest points to the old segments, if we crash meanwhile every record is read instead
+            Files.deleteIfExists(new File(folder, MANIFEST).toPath());
+        }
+
+        Set<Integer> moved = new HashSet<>(old);
+        for (String username : new ArrayList<>(this.index.keySet())) {
+            synchronized (this) {
+                Entry entry = this.index.get(username);
+                if (entry == null || !moved.contains(this.firstSegment(entry)))
+                    continue; // removed or rewritten meanwhile
+                Timeline timeline = this.get(username);
+                if (timeline != null)
+                    this.put(timeline);
+            }
+        }
+
+        synchronized (this) {
+            // in the order they were written, so that a crash never leaves a removal deleted while the timeline it
+            // removed isn't
+            for (int segment : old) {
+                Files.deleteIfExists(segmentFile(segment).toPath());
+                this.segments.set(segment, null); // readers in the middle of a decode keep the mapping
+            }
+            this.writeManifest();
+        }
+    }
+
+    // Segment of the whole timeline at the start of the chain, the oldest record of the timeline
+    private int firstSegment(Entry entry) {
+        long position = entry.position;
+        for (int i = 0; i < entry.chain; ++i)
+            position = this.segments.get((int) (position >>> 32)).getLong((int) position + FRAME + Byte.BYTES);
+        return (int) (position >>> 32);
+    }
+
+    // Decodes the timeline: reads back the chain of changes down to the whole timeline and applies them
+    public Timeline get(String username) {
+        while (true) {
+            Entry entry = this.index.get(username);
+            if (entry == null)
+                return null;
+            Timeline timeline = this.decode(username, entry);
+            if (timeline != null || this.index.get(username) == entry)
+                return timeline;
+            // moved by a compaction while we were reading, read it again from where it is now
+        }
+    }
+
+    private Timeline decode(String username, Entry entry) {
+        try {
+            Deque<TimelineDelta> changes = new ArrayDeque<>();
+            long position = entry.position;
+            while (true) {
+                MappedByteBuffer segment = this.segments.get((int) (position >>> 32));
+                if (segment == null)
+                    return null; // deleted by a compaction
+                ByteBuffer record = segment.duplicate().position((int) position);
+                int length = record.getInt();
+                int checksum = record.getInt();
+                int end = record.position() + length;
+                if (length <= 0 || end > record.capacity() || checksum(record.duplicate().limit(end)) != checksum) {
+                    System.err.println("Error: Cached timeline of " + username + " is corrupt, dropping it.");
+                    this.drop(username, entry);
+                    return null;
+                }
+                StoreRecord.Type type = StoreRecord.Type.values()[record.get()];
+                long previous = record.getLong();
+                record.position(record.position() + HEADER - Byte.BYTES - Long.BYTES);
+                if (!readString(record).equals(username))
+                    return null; // the segment was deleted by a compaction and its id reused meanwhile
+
+                byte[] payload = new byte[end - record.position()];
+                record.get(payload);
+                if (type == StoreRecord.Type.TIMELINE) {
+                    Timeline timeline = (Timeline) decode(payload);
+                    for (TimelineDelta change : changes)
+                        timeline.applyDelta(change);
+                    return timeline;
+                }
+                changes.push((TimelineDelta) decode(payload));
+                position = previous;
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+            System.err.println("ERROR: Failed to read cached timeline of " + username);
+            return null;
+        }
+    }
+
+    // Removes the timeline from the index unless it changed meanwhile, its records are reclaimed by compaction
+    private synchronized void drop(String username, Entry entry) {
+        if (this.index.get(username) == entry)
+            this.removeEntry(username);
+    }
+
+    public boolean contains(String username) {
+        return this.index.containsKey(username);
+    }
+
+    public LocalTime getLastUpdate(String username) {
+        Entry entry = this.index.get(username);
+        return entry == null ? null : LocalTime.ofNanoOfDay(entry.lastUpdate);
+    }
+
+    // Bytes that have to be decoded to get the timeline
+    public int getSize(String username) {
+        Entry entry = this.index.get(username);
+        return entry == null ? 0 : entry.size;
+    }
+
+    public Set<String> getUsernames() {
+        return this.index.keySet();
+    }
+
+    // Username => Hash of the timeline (see Timeline.getHash)
+    public Map<String, Long> getHashes() {
+        Map<String, Long> hashes = new HashMap<>();
+        for (Map.Entry<String, Entry> entry : this.index.entrySet())
+            hashes.put(entry.getKey(), entry.getValue().hash);
+        return hashes;
+    }
+
+    // Writes the mapped segments and the manifest to disk
+    public synchronized void close() {
+        for (MappedByteBuffer segment : this.segments)
+            if (segment != null)
+                segment.force();
+        try {
+            this.writeManifest();
+        } catch (IOException e) {
+            System.err.println("Error: Couldn't write manifest of cached timelines.");
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package main.model.timelines;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+// Entry of the timeline store log: a whole timeline, a change to a timeline, or its removal
+public class StoreRecord implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    public enum Type { TIMELINE, CHANGE, REMOVE }
+
+    private final Type type;
+    private final String username;
+    private final Timeline timeline;
+    private final TimelineDelta change;
+
+    private StoreRecord(Type type, String username, Timeline timeline, TimelineDelta change) {
+        this.type = type;
+        this.username = username;
+        this.timeline = timeline;
+        this.change = change;
+    }
+
+    public static StoreRecord timeline(Timeline timeline) {
+        return new StoreRecord(Type.TIMELINE, timeline.getUsername(), timeline, null);
+    }
+
+    public static StoreRecord change(TimelineDelta change) {
+        return new StoreRecord(Type.CHANGE, change.getUsername(), null, change);
+    }
+
+    public static StoreRecord remove(String username) {
+        return new StoreRecord(Type.REMOVE, username, null, null);
+    }
+
+    // Coalesces two records of the same timeline into the one that has to be written
+    public StoreRecord merge(StoreRecord next) {
+        if (next.type != Type.CHANGE || this.type == Type.REMOVE)
+            return next; // whole timeline or its removal replaces every previous change
+        if (this.type == Type.TIMELINE)
+            return this; // timeline is written as it is when flushed, so it already has the change
+        return change(this.change.merge(next.change));
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Timeline getTimeline() {
+        return timeline;
+    }
+
+    public TimelineDelta getChange() {
+        return change;
+    }
+}
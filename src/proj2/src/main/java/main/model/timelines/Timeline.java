@@ -1,28 +1,49 @@
 package main.model.timelines;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.security.*;
 import java.time.LocalTime;
 import java.util.*;
 
 public class Timeline implements Serializable, Comparable<Timeline> {
     private static final long serialVersionUID = 1L;
+    public static final int SYNC_BUCKETS = 16; // leaves of the merkle tree, posts are split by id
 
-    private final Map<Integer, Post> posts;
+    private final PostArray posts; // and deleted posts with the version of their deletion
     private int lastPostId;
+    private long version; // incremented on every change, each post keeps the version of its last change
     private final String username;
     private LocalTime lastUpdate;
     private final Long clockOffset;
-    private final Cipher cipher;
+    private Cipher cipher;
     private boolean verification;
+    private transient long[] bucketHashes; // cached merkle leaves, reset on every change
+    private transient PostIndex index; // built on the first search, then kept up to date by every change
+    private transient TreeMap<TimeKey, Post> timeIndex; // posts by timestamp, built on the first range query
+
+    // Posts made at the same time are told apart by their id
+    private record TimeKey(LocalTime timestamp, int postId) implements Comparable<TimeKey> {
+        private TimeKey(Post post) {
+            this(post.getTimestamp(), post.getId());
+        }
+
+        @Override
+        public int compareTo(TimeKey o) {
+            int cmp = this.timestamp.compareTo(o.timestamp);
+            return cmp != 0 ? cmp : Integer.compare(this.postId, o.postId);
+        }
+    }
 
     public Timeline(String username, Long clockOffset) {
-        this.posts = new HashMap<>();
+        this.posts = new PostArray();
         this.username = username;
         this.lastUpdate = LocalTime.now().plusNanos(clockOffset);
         this.lastPostId = 0;
+        this.version = 0;
         this.clockOffset = clockOffset;
         this.cipher = new Cipher();
     }
@@ -30,15 +51,44 @@ public class Timeline implements Serializable, Comparable<Timeline> {
     public Post addPost(String post_content) {
         this.lastPostId++;
         Post res = new Post(lastPostId, username, post_content);
-        this.posts.put(this.lastPostId, res);
+        res.setVersion(++this.version);
+        this.posts.put(res);
+        this.index(null, res);
         this.lastUpdate = LocalTime.now().plusNanos(clockOffset);
+        this.bucketHashes = null;
         return res;
     }
 
+    // Ids are given by the owner from 1, the ones we receive that can't be are dropped
+    private static boolean isValidId(int postId) {
+        return postId > 0;
+    }
+
+    // Adds a post made by the owner of the timeline (received through a subscription), false if its id is invalid
+    public boolean putPost(Post post) {
+        if (!isValidId(post.getId())) {
+            System.err.println("ERROR: Invalid post id " + post.getId() + " for " + username);
+            return false;
+        }
+        post.shareUsername(this.username);
+        Post previous = this.posts.put(post);
+        this.index(previous, post);
+        this.lastPostId = Math.max(this.lastPostId, post.getId());
+        this.lastUpdate = LocalTime.now().plusNanos(clockOffset);
+        this.bucketHashes = null;
+        // only advance if we hold every previous change, otherwise a delta would skip the ones we missed
+        if (post.getVersion() == this.version + 1)
+            this.version = post.getVersion();
+        return true;
+    }
+
     public boolean deletePost(int postId) {
         Post deleted = this.posts.remove(postId);
         if (deleted != null) {
+            this.index(deleted, null);
+            this.posts.delete(postId, ++this.version);
             this.lastUpdate = LocalTime.now().plusNanos(clockOffset);
+            this.bucketHashes = null;
             return true;
         }
         System.err.println("ERROR: Failed to delete post " + postId + " from " + username);
@@ -47,26 +97,133 @@ public class Timeline implements Serializable, Comparable<Timeline> {
 
     public LocalTime getLastUpdate() { return lastUpdate; }
 
+    public long getVersion() { return version; }
+
     public boolean updatePost(int postId, String post_content) {
         Post post = this.posts.get(postId);
         if (post != null && post.update(post_content)) {
+            this.index(post, post);
+            post.setVersion(++this.version);
             this.lastUpdate = LocalTime.now().plusNanos(clockOffset);
+            this.bucketHashes = null;
             return true;
         }
         System.err.println("ERROR: Failed to delete post " + postId + " from " + username);
         return false;
     }
 
-    public void save(File timelinesFolder) throws IOException {
-        FileOutputStream fos = new FileOutputStream(timelinesFolder + File.separator + username);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        oos.writeObject(this);
+    // Changes made after the given version
+    public TimelineDelta getDelta(long sinceVersion) {
+        List<Post> changed = new ArrayList<>();
+        for (Post post : this.posts)
+            if (post.getVersion() > sinceVersion)
+                changed.add(post);
 
-        oos.close();
+        Map<Integer, Long> deleted = new HashMap<>();
+        for (int postId = this.posts.nextDeleted(0); postId >= 0; postId = this.posts.nextDeleted(postId + 1))
+            if (this.posts.getDeletion(postId) > sinceVersion)
+                deleted.put(postId, this.posts.getDeletion(postId));
+
+        return new TimelineDelta(username, sinceVersion, version, lastPostId, lastUpdate, changed, deleted, cipher);
+    }
+
+    // Last change made to the given post, to be stored without the rest of the timeline
+    public TimelineDelta getChange(Post post) {
+        return new TimelineDelta(username, 0, version, lastPostId, lastUpdate,
+                List.of(post), Map.of(), cipher);
     }
 
-    public boolean remove(File timelinesFolder) throws  IOException {
-        return Files.deleteIfExists(Paths.get(timelinesFolder + File.separator + username)); //toDelete = new File(timelinesFolder + File.separator + username);
+    public TimelineDelta getDeletion(int postId) {
+        return new TimelineDelta(username, 0, version, lastPostId, lastUpdate,
+                List.of(), Map.of(postId, this.posts.getDeletion(postId)), cipher);
+    }
+
+    // Applies changes in place, returns false if the delta starts after our version (we would miss changes)
+    public boolean applyDelta(TimelineDelta delta) {
+        if (delta.getBaseVersion() > this.version)
+            return false;
+
+        for (Post post : delta.getPosts()) {
+            if (!isValidId(post.getId()))
+                continue;
+            Post current = this.posts.get(post.getId());
+            if (current == null || current.getVersion() < post.getVersion()) {
+                post.shareUsername(this.username);
+                this.posts.put(post);
+                this.index(current, post);
+            }
+        }
+        for (Map.Entry<Integer, Long> tombstone : delta.getTombstones().entrySet()) {
+            if (!isValidId(tombstone.getKey()))
+                continue;
+            Post current = this.posts.get(tombstone.getKey());
+            if (current != null && current.getVersion() < tombstone.getValue()) {
+                this.posts.remove(tombstone.getKey());
+                this.index(current, null);
+            }
+            this.posts.delete(tombstone.getKey(), tombstone.getValue());
+        }
+
+        // an older change doesn't carry the signature of what we hold
+        if (delta.getVersion() >= this.version)
+            this.cipher = delta.getCipher();
+        this.version = Math.max(this.version, delta.getVersion());
+        this.lastPostId = Math.max(this.lastPostId, delta.getLastPostId());
+        if (delta.getLastUpdate().isAfter(this.lastUpdate))
+            this.lastUpdate = delta.getLastUpdate();
+        this.bucketHashes = null;
+        return true;
+    }
+
+    // Merkle tree
+
+    public static int getBucket(int postId) {
+        return postId % SYNC_BUCKETS;
+    }
+
+    // Hash of each bucket, computed from the id, version and content of its posts and tombstones
+    public long[] getBucketHashes() {
+        if (this.bucketHashes != null)
+            return this.bucketHashes;
+
+        List<List<HashCode>> buckets = new ArrayList<>();
+        for (int i = 0; i < SYNC_BUCKETS; ++i)
+            buckets.add(new ArrayList<>());
+        for (Post post : this.posts)
+            buckets.get(getBucket(post.getId())).add(Hashing.murmur3_128().newHasher().putInt(post.getId())
+                    .putLong(post.getVersion()).putBytes(post.getContentBytes()).hash());
+        for (int postId = this.posts.nextDeleted(0); postId >= 0; postId = this.posts.nextDeleted(postId + 1))
+            buckets.get(getBucket(postId)).add(Hashing.murmur3_128().newHasher()
+                    .putInt(postId).putLong(this.posts.getDeletion(postId)).hash());
+
+        long[] hashes = new long[SYNC_BUCKETS];
+        for (int i = 0; i < SYNC_BUCKETS; ++i)
+            hashes[i] = buckets.get(i).isEmpty() ? 0 : Hashing.combineUnordered(buckets.get(i)).asLong();
+        this.bucketHashes = hashes;
+        return hashes;
+    }
+
+    public long getHash() {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (long hash : this.getBucketHashes())
+            hasher.putLong(hash);
+        return hasher.hash().asLong();
+    }
+
+    // Posts and tombstones of the given buckets, to be merged by a replica that diverges on them
+    public TimelineDelta getBuckets(Set<Integer> buckets) {
+        List<Post> changed = new ArrayList<>();
+        for (Post post : this.posts)
+            if (buckets.contains(getBucket(post.getId())))
+                changed.add(post);
+
+        Map<Integer, Long> deleted = new HashMap<>();
+        for (int postId = this.posts.nextDeleted(0); postId >= 0; postId = this.posts.nextDeleted(postId + 1))
+            if (buckets.contains(getBucket(postId)))
+                deleted.put(postId, this.posts.getDeletion(postId));
+
+        // merged post by post, so it applies on top of any version
+        return new TimelineDelta(username, 0, version, lastPostId, lastUpdate, changed, deleted, cipher);
     }
 
     public boolean hasSignature() {
@@ -80,8 +237,8 @@ public class Timeline implements Serializable, Comparable<Timeline> {
     public void verifySignature(PublicKey publicKey) {
         if(this.cipher.verifySignature(this.getTimelineContent(), publicKey)){
             this.verification = true;
-            for(Integer pos : this.posts.keySet()){
-                this.posts.get(pos).setVerification(true);
+            for(Post post : this.posts){
+                post.setVerification(true);
             }
         }
         else{
@@ -89,21 +246,64 @@ public class Timeline implements Serializable, Comparable<Timeline> {
         }
     }
 
+    // Search
+
+    // Keeps the indexes that were built in step with the posts: previous is replaced by post, either may be null
+    private void index(Post previous, Post post) {
+        if (this.index != null) {
+            if (post != null)
+                this.index.add(post);
+            else
+                this.index.remove(previous.getId());
+        }
+        if (this.timeIndex != null) {
+            if (previous != null)
+                this.timeIndex.remove(new TimeKey(previous));
+            if (post != null)
+                this.timeIndex.put(new TimeKey(post), post);
+        }
+    }
+
+    // Posts that contain every word of the search (see PostIndex)
     public List<Post> getRelatedPosts(String search) {
+        if (this.index == null)
+            this.index = new PostIndex(this.posts.values());
+
         List<Post> posts = new ArrayList<>();
+        for (int postId : this.index.search(search))
+            posts.add(this.posts.get(postId));
+        return posts;
+    }
 
-        for (Post post: this.posts.values()) {
-            if (post.matchesSearch(search))
-                posts.add(post);
+    // Posts made in [from, to), oldest first, at most limit of them
+    public List<Post> getPosts(LocalTime from, LocalTime to, int limit) {
+        if (this.timeIndex == null) {
+            this.timeIndex = new TreeMap<>();
+            for (Post post : this.posts)
+                this.timeIndex.put(new TimeKey(post), post);
         }
 
+        List<Post> posts = new ArrayList<>();
+        if (!from.isBefore(to))
+            return posts;
+        SortedMap<TimeKey, Post> range = this.timeIndex.subMap(new TimeKey(from, Integer.MIN_VALUE),
+                new TimeKey(to, Integer.MIN_VALUE));
+        for (Post post : range.values()) {
+            if (posts.size() >= limit)
+                break;
+            posts.add(post);
+        }
         return posts;
     }
 
     public String getUsername() { return this.username; }
 
+    public Post getPost(int postId) {
+        return this.posts.get(postId);
+    }
+
     public List<Post> getPosts() {
-        return new ArrayList<>(this.posts.values());
+        return this.posts.values();
     }
 
     @Override
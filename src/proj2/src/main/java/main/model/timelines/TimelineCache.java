@@ -0,0 +1,128 @@
+package main.model.timelines;
+
+import main.model.timelines.cache.CachePolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+// Timelines cached from other peers: every timeline is written through to the segments (see SegmentStore),
+// and the ones the policy picks are also kept decoded in memory, within its budget.
+// Evicting a timeline only drops the decoded copy, it is decoded again from the segments when asked for.
+public class TimelineCache {
+    public static final long BYTES_PER_CAPACITY = 256 << 10; // memory budget given by each unit of capacity
+
+    // Told when a timeline starts or stops being kept in memory, so that what is held for it follows the budget
+    // Called while the cache is locked
+    public interface Listener {
+        void kept(Timeline timeline);
+
+        void dropped(String username);
+    }
+
+    private final SegmentStore segments;
+    private final CachePolicy policy;
+    private final Map<String, Timeline> decoded; // Username => Timeline kept in memory
+    private final Listener listener;
+
+    public TimelineCache(File folder, CachePolicy policy) {
+        this(folder, policy, null);
+    }
+
+    public TimelineCache(File folder, CachePolicy policy, Listener listener) {
+        this.segments = new SegmentStore(folder);
+        this.policy = policy;
+        this.decoded = new HashMap<>();
+        this.listener = listener;
+    }
+
+    // Kept in memory timelines are shared, changes to them must be stored through put or update
+    public synchronized Timeline get(String username) {
+        Timeline timeline = this.decoded.get(username);
+        if (timeline != null) {
+            this.policy.access(username);
+            return timeline;
+        }
+
+        timeline = this.segments.get(username);
+        if (timeline != null)
+            this.keep(timeline);
+        return timeline;
+    }
+
+    // Decodes the timeline without keeping it in memory, for reads that aren't accesses of the peer
+    public synchronized Timeline load(String username) {
+        Timeline timeline = this.decoded.get(username);
+        return timeline != null ? timeline : this.segments.get(username);
+    }
+
+    // Sizes are the ones of the encoded records, close enough to what they take in memory
+    private void keep(Timeline timeline) {
+        String username = timeline.getUsername();
+        boolean kept = this.decoded.put(username, timeline) != null;
+        for (String evicted : this.policy.add(username, this.segments.getSize(username))) {
+            if (this.decoded.remove(evicted) != null && this.listener != null)
+                this.listener.dropped(evicted);
+        }
+        if (!kept && this.decoded.containsKey(username) && this.listener != null)
+            this.listener.kept(timeline);
+    }
+
+    public synchronized void put(Timeline timeline) throws IOException {
+        this.segments.put(timeline);
+        this.keep(timeline);
+    }
+
+    // Stores a change made to the timeline, the timeline must already have it applied
+    public synchronized void update(Timeline timeline, TimelineDelta change) throws IOException {
+        this.segments.update(timeline, change);
+        this.keep(timeline);
+    }
+
+    public synchronized void remove(String username) throws IOException {
+        this.segments.remove(username);
+        this.decoded.remove(username);
+        this.policy.remove(username);
+    }
+
+    public synchronized boolean isDecoded(String username) {
+        return this.decoded.containsKey(username);
+    }
+
+    public boolean contains(String username) {
+        return this.segments.contains(username);
+    }
+
+    public LocalTime getLastUpdate(String username) {
+        return this.segments.getLastUpdate(username);
+    }
+
+    public Set<String> getUsernames() {
+        return this.segments.getUsernames();
+    }
+
+    public Map<String, Long> getHashes() {
+        return this.segments.getHashes();
+    }
+
+    public boolean needsCompaction() {
+        return this.segments.needsCompaction();
+    }
+
+    // Decoded timelines stay as they are, only their records move
+    public void compact() throws IOException {
+        this.segments.compact();
+    }
+
+    public CompletableFuture<Void> warmUp() {
+        return this.segments.warmUp();
+    }
+
+    public void close() {
+        this.segments.close();
+    }
+}
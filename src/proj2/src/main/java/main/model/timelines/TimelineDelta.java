@@ -0,0 +1,87 @@
+package main.model.timelines;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.time.LocalTime;
+import java.util.*;
+
+// Changes made to a timeline since a given version: posts created or updated, and posts deleted (tombstones)
+public class TimelineDelta implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String username;
+    private final long baseVersion; // version the changes are relative to
+    private final long version; // version of the timeline after applying the changes
+    private final int lastPostId;
+    private final LocalTime lastUpdate;
+    private final List<Post> posts;
+    private final Map<Integer, Long> tombstones; // Post id => Version of the deletion
+    private final Cipher cipher; // signature of the whole timeline the delta was taken from
+
+    public TimelineDelta(String username, long baseVersion, long version, int lastPostId, LocalTime lastUpdate,
+                         List<Post> posts, Map<Integer, Long> tombstones, Cipher cipher) {
+        this.username = username;
+        this.baseVersion = baseVersion;
+        this.version = version;
+        this.lastPostId = lastPostId;
+        this.lastUpdate = lastUpdate;
+        this.posts = posts;
+        this.tombstones = tombstones;
+        this.cipher = cipher;
+    }
+
+    // Changes of this delta followed by the changes of the next one
+    public TimelineDelta merge(TimelineDelta next) {
+        Map<Integer, Post> merged = new LinkedHashMap<>();
+        for (Post post : this.posts)
+            merged.put(post.getId(), post);
+        for (Post post : next.posts)
+            merged.merge(post.getId(), post, (a, b) -> a.getVersion() > b.getVersion() ? a : b);
+
+        Map<Integer, Long> deleted = new HashMap<>(this.tombstones);
+        next.tombstones.forEach((id, version) -> deleted.merge(id, version, Math::max));
+
+        return new TimelineDelta(username, Math.min(baseVersion, next.baseVersion), Math.max(version, next.version),
+                Math.max(lastPostId, next.lastPostId), next.lastUpdate, new ArrayList<>(merged.values()),
+                deleted, next.cipher);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getLastPostId() {
+        return lastPostId;
+    }
+
+    public LocalTime getLastUpdate() {
+        return lastUpdate;
+    }
+
+    public List<Post> getPosts() {
+        return posts;
+    }
+
+    public Map<Integer, Long> getTombstones() {
+        return tombstones;
+    }
+
+    public Cipher getCipher() {
+        return cipher;
+    }
+
+    @Override
+    public String toString() {
+        return username + "'s Delta: " + baseVersion + " -> " + version +
+                "\n\tPosts: " + posts.size() + "\n\tDeleted: " + tombstones.keySet();
+    }
+}
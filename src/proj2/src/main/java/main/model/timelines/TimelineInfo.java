@@ -1,42 +1,102 @@
 package main.model.timelines;
 
 import main.controller.network.NTP;
+import main.model.timelines.cache.CachePolicy;
+import main.model.timelines.cache.LruPolicy;
+import main.model.timelines.cache.TinyLfuPolicy;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.time.Duration;
 import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 
+// Timelines stored by the peer: our own, kept in memory and in the log (see TimelineStore),
+// and the ones cached from other peers, kept in memory-mapped segments and partly in memory (see TimelineCache)
+// Searches go through a single index of all of them (see SearchIndex), so that we answer for the timelines we cache
+// Queries are parsed by SearchQuery and answered with the best posts, ranked by the index
 public class TimelineInfo {
+    // updated: when the timeline was last updated by its owner, in ns of System.nanoTime, so that it doesn't move
+    // with the clock or wrap around at midnight like its lastUpdate. It expires maxKeepTime after that
+    private record Expiry(long updated, String username) implements Comparable<Expiry> {
+        @Override
+        public int compareTo(Expiry o) {
+            int cmp = Long.compare(this.updated, o.updated);
+            return cmp != 0 ? cmp : this.username.compareTo(o.username);
+        }
+    }
+
     public static String FOLDER = "stored_timelines" + File.separator;
+    private static final int FEED_PAGE = 20; // posts read from the feed at a time when it is shown
     private final File timelines_folder;
-    private final Map<String, Timeline> timelines;
+    private Timeline timeline; // own timeline
+    private final TimelineCache cache; // timelines of other peers
+    private final SearchIndex searchIndex; // posts of our timeline and of the cached ones kept in memory
+    private final SearchCache searchCache; // results of recent searches
+    private final Feed feed; // posts of every stored timeline in time order
+    private final CompletableFuture<Void> indexing; // of the cached timelines, in the background
     private final String me;
     private final Long clockOffset;
     private int maxKeepTime; // max time to keep timeline stored (in seconds)
-    private BackupService backupService;
+    // Expiry index of the cached timelines, ordered by when they were last updated, so by when they expire.
+    // A change replaces the timeline's expiry
+    private final TreeSet<Expiry> expiries;
+    private final Map<String, Expiry> expiryOf; // Owner => Its expiry in the index
+    private final TimelineStore store;
+    private final BackupService backupService;
+
+    public TimelineInfo(String username, int capacity) {
+        this(username, capacity, Durability.BATCHED);
+    }
 
-    public TimelineInfo(String username) {
+    // capacity: the peer's, gives the memory budget of the cached timelines
+    public TimelineInfo(String username, int capacity, Durability durability) {
+        this(username, durability, BackupService.FLUSH_INTERVAL, getNtpOffset(),
+                new TinyLfuPolicy(capacity * TimelineCache.BYTES_PER_CAPACITY));
+    }
+
+    // clockOffset given by the caller instead of asking NTP, and cached timelines decoded on every access,
+    // for testing
+    public TimelineInfo(String username, Durability durability, int flushInterval, Long clockOffset) {
+        this(username, durability, flushInterval, clockOffset, new LruPolicy(0));
+    }
+
+    // flushInterval: max time that a change waits to be written or forced to disk (in ms)
+    // policy: picks the cached timelines that are kept decoded in memory
+    public TimelineInfo(String username, Durability durability, int flushInterval, Long clockOffset,
+                        CachePolicy policy) {
         // create folder
         this.timelines_folder = new File(FOLDER + username);
         this.timelines_folder.mkdirs();
-        this.timelines = new ConcurrentHashMap<>();
         this.me = username;
 
-        NTP ntp = new NTP();
-        ntp.updateOffsets();
-        this.clockOffset = ntp.getOffsetValue();
-        // create own timeline file
+        this.clockOffset = clockOffset;
+        // create own timeline
         Timeline t = new Timeline(username, clockOffset);
-        this.timelines.put(username, t);
+        this.timeline = t;
         this.maxKeepTime = 120; // in seconds
+        this.expiries = new TreeSet<>();
+        this.expiryOf = new HashMap<>();
+
+        this.store = new TimelineStore(timelines_folder);
+        // the index of a cached timeline is held as long as its decoded copy, within the budget of the policy
+        this.cache = new TimelineCache(timelines_folder, policy, new TimelineCache.Listener() {
+            @Override
+            public void kept(Timeline timeline) {
+                searchCache.invalidate(searchIndex.put(timeline));
+            }
 
-        this.backupService = new BackupService(timelines_folder);
+            @Override
+            public void dropped(String username) {
+                searchCache.invalidate(searchIndex.remove(username));
+            }
+        });
+        this.searchIndex = new SearchIndex();
+        this.searchCache = new SearchCache(SearchCache.SIZE);
+        this.feed = new Feed();
+        this.backupService = new BackupService(this, store, cache, durability, flushInterval);
         // load timelines
         try {
             loadTimelines();
@@ -44,149 +104,426 @@ public class TimelineInfo {
             e.printStackTrace();
             System.err.println("ERROR: Failed to load timelines");
         }
+        if (this.timeline == t) { // first run, store our own timeline
+            this.backup(StoreRecord.timeline(t));
+            this.backupService.commit();
+        }
+        this.index(this.timeline);
+        this.scheduleExpiries();
+        // cached timelines are decoded when asked for, page them in meanwhile so that the first lookups don't wait
+        this.indexing = this.cache.warmUp().thenRun(this::indexCachedTimelines);
     }
 
-    public void showFeed() {
-        List<Timeline> timelines = new ArrayList<>(this.timelines.values());
-        List<Post> posts = new ArrayList<>();
-        for (Timeline timeline : timelines) {
-            posts.addAll(timeline.getPosts());
+    // Every cached timeline joins the feed, the ones the policy keeps in memory are indexed as they are decoded
+    // Changes made meanwhile are indexed as they happen, the index ignores the older copies read here
+    private void indexCachedTimelines() {
+        for (String username : this.cache.getUsernames()) {
+            synchronized (this) { // searches cache their results under this lock
+                Timeline cached = this.cache.get(username);
+                if (cached != null)
+                    this.feed.put(cached);
+            }
         }
+    }
+
+    private static Long getNtpOffset() {
+        NTP ntp = new NTP();
+        ntp.updateOffsets();
+        return ntp.getOffsetValue();
+    }
+
+    public void showFeed() {
+        this.indexing.join(); // cached timelines join the feed once indexed
 
-        Collections.sort(posts);
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm");
         System.out.println("============================");
         System.out.println("\t\t\t" + this.me.toUpperCase());
-        for (Post post : posts) {
-            System.out.println("============================");
-            System.out.printf("\t%s\t\t%s\n",post.getUsername(), post.getTimestamp().format(formatter));
-            System.out.println("\t" + post.getContent());
+        List<Post> posts = this.feed(null, FEED_PAGE);
+        while (!posts.isEmpty()) {
+            for (Post post : posts) {
+                System.out.println("============================");
+                System.out.printf("\t%s\t\t%s\n",post.getUsername(), post.getTimestamp().format(formatter));
+                System.out.println("\t" + post.getContent());
+            }
+            posts = this.feed(posts.get(posts.size() - 1), FEED_PAGE);
         }
 
     }
 
-    public void loadTimelines() throws IOException, ClassNotFoundException {
-        File[] files = timelines_folder.listFiles();
-
-        if (files == null)
-            return;
-
-        for(File f : files) {
-            FileInputStream fis = new FileInputStream(f);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            Timeline timeline = (Timeline)ois.readObject(); // down-casting object
-            this.timelines.put(timeline.getUsername(), timeline);
+    // Page of the feed: posts of every stored timeline made after the given one (null for the first page),
+    // oldest first, at most limit of them. Only the posts of the page are read from the timelines
+    public synchronized List<Post> feed(Post after, int limit) {
+        List<Post> posts = new ArrayList<>();
+        for (Feed.Entry entry : this.feed.page(after == null ? null : new Feed.Entry(after), limit)) {
+            Timeline timeline = this.getTimeline(entry.username());
+            Post post = timeline == null ? null : timeline.getPost(entry.postId());
+            if (post != null)
+                posts.add(post);
+        }
+        return posts;
+    }
 
-            ois.close();
+    public void loadTimelines() throws IOException, ClassNotFoundException {
+        Map<String, Timeline> recovered = this.store.recover();
+        Timeline own = recovered.remove(this.me);
+        if (own != null)
+            this.timeline = own;
+
+        if (!recovered.isEmpty() || this.store.hasLegacyFiles()) {
+            // log written before cached timelines had their own store (or timelines saved one per file before the
+            // log), move them to the segments
+            for (Timeline cached : recovered.values())
+                this.cache.put(cached);
+            synchronized (this) {
+                this.store.compact(List.of(this.timeline));
+            }
+            this.store.deleteLegacyFiles();
         }
     }
 
     public void addTimeline(Timeline timeline) {
-        LocalTime timelineToAddTimeStamp = timeline.getLastUpdate();
-        Timeline t = this.getTimeline(timeline.getUsername());
+        synchronized (this) {
+            LocalTime timelineToAddTimeStamp = timeline.getLastUpdate();
+            LocalTime savedTimelineTimeStamp = this.getLastUpdate(timeline.getUsername());
+
+            //Returns if saved timeline is more recent
+            if(savedTimelineTimeStamp != null) {
+                if(timelineToAddTimeStamp.compareTo(savedTimelineTimeStamp) <= 0) {
+                    return;
+                }
+            }
 
-        //Returns if saved timeline is more recent
-        if(t != null) {
-            LocalTime savedTimelineTimeStamp = t.getLastUpdate();
-            if(timelineToAddTimeStamp.compareTo(savedTimelineTimeStamp) <= 0) {
-                return;
+            if (this.isOwn(timeline.getUsername())) {
+                this.timeline = timeline;
+                this.index(timeline);
+                this.backup(StoreRecord.timeline(timeline));
+            } else {
+                this.index(timeline); // dropped again if the cache doesn't keep it
+                this.cacheTimeline(timeline, null);
             }
         }
-
-        this.timelines.put(timeline.getUsername(), timeline);
-        this.backup(timeline);
-        this.cleanup();
+        this.backupService.commit();
     }
 
-    public Post addPost(String username, String post_str) {
+    // Applies changes to our copy of the timeline, returns null if we can't apply them
+    // A cached copy is decoded for it (see getOrCreateTimeline)
+    public Timeline applyDelta(TimelineDelta delta) {
+        Timeline timeline;
+        synchronized (this) {
+            timeline = this.getTimeline(delta.getUsername());
+            if (timeline == null || !timeline.applyDelta(delta))
+                return null;
 
-        Timeline timeline = this.timelines.computeIfAbsent(username, k -> new Timeline(username, clockOffset));
-        // add post
-        Post res = timeline.addPost(post_str);
+            this.save(timeline, delta);
+        }
+        this.backupService.commit();
+        return timeline;
+    }
 
-        // update timeline file
-        this.backup(timeline);
-        this.cleanup();
+    // Adds a post received from the owner of the timeline
+    public void putPost(Post post) {
+        synchronized (this) {
+            Timeline timeline = this.getOrCreateTimeline(post.getUsername());
+            if (!timeline.putPost(post))
+                return;
+
+            this.save(timeline, timeline.getChange(post));
+        }
+        this.backupService.commit();
+    }
 
+    public Post addPost(String username, String post_str) {
+        Post res;
+        synchronized (this) {
+            Timeline timeline = this.getOrCreateTimeline(username);
+            // add post
+            res = timeline.addPost(post_str);
+
+            // append post to the log
+            this.save(timeline, timeline.getChange(res));
+        }
+        // the lock is released before waiting for the disk, so that concurrent posts share the force
+        this.backupService.commit();
         return res;
     }
 
+    // Cached timelines are created when the change is saved
+    // Changes to a cached timeline can't be appended to its records without decoding it: they depend on the
+    // versions of our copy (a delta with a gap is dropped, a post only moves the version on if none is missing),
+    // each record carries the hash of the timeline it leaves for anti-entropy, and the search index and the feed
+    // are updated from the posts it leaves.
+    // The decode reads at most SegmentStore.MAX_CHAIN changes, and the access lets the cache policy keep the copy
+    // decoded for the changes that follow
+    private Timeline getOrCreateTimeline(String username) {
+        Timeline timeline = this.getTimeline(username);
+        if (timeline == null)
+            timeline = new Timeline(username, clockOffset);
+        return timeline;
+    }
+
     public void updatePost(String username, int postId, String newContent) {
-        Timeline timeline = this.timelines.get(username);
+        synchronized (this) {
+            Timeline timeline = this.getTimeline(username);
 
-        if (timeline == null)
-            return;
-        if (timeline.updatePost(postId, newContent)) {
-            this.backup(timeline);
-            this.cleanup();
+            if (timeline == null)
+                return;
+            if (timeline.updatePost(postId, newContent)) {
+                this.save(timeline, timeline.getChange(timeline.getPost(postId)));
+            }
         }
+        this.backupService.commit();
     }
 
     public void deletePost(String username, int postId) {
-        // get timeline
-        Timeline timeline = this.timelines.get(username);
-        if (timeline == null)
-            return;
-        // delete post
-        if (timeline.deletePost(postId)) {
-            // update timeline
-            this.backup(timeline);
-            this.cleanup();
+        synchronized (this) {
+            // get timeline
+            Timeline timeline = this.getTimeline(username);
+            if (timeline == null)
+                return;
+            // delete post
+            if (timeline.deletePost(postId)) {
+                // append deletion to the log
+                this.save(timeline, timeline.getDeletion(postId));
+            }
         }
+        this.backupService.commit();
     }
 
-    public void backup(Timeline timeline) {
-        backupService.setTimeline(timeline);
-        Thread t = new Thread(backupService);
-        t.start();
+    // Stores a change made to the timeline: ours goes to the log, cached ones to the segments
+    private void save(Timeline timeline, TimelineDelta change) {
+        this.searchCache.invalidate(this.searchIndex.update(timeline, change));
+        this.feed.update(timeline, change);
+        if (this.isOwn(timeline.getUsername()))
+            this.backup(StoreRecord.change(change));
+        else
+            this.cacheTimeline(timeline, change);
     }
 
-    public void cleanup() {
-        LocalTime currentTime = LocalTime.now();
-        currentTime = currentTime.plusNanos(clockOffset);
+    private void cacheTimeline(Timeline timeline, TimelineDelta change) {
+        try {
+            if (change == null)
+                this.cache.put(timeline);
+            else
+                this.cache.update(timeline, change);
+            this.scheduleExpiry(timeline.getUsername(), timeline.getLastUpdate());
+        } catch (IOException e) {
+            System.err.println("Error: Couldn't cache timeline of " + timeline.getUsername() + ".");
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void backup(StoreRecord record) {
+        this.backupService.add(record);
+    }
+
+    public BackupService.Stats getBackupStats() {
+        return this.backupService.getStats();
+    }
+
+    // Writes every change that is still waiting and forces it to disk, no changes are written afterwards
+    public void close() {
+        this.backupService.stop();
+        this.cache.close();
+    }
+
+    private LocalTime now() {
+        return LocalTime.now().plusNanos(clockOffset);
+    }
+
+    // Time since the given update, in ns. lastUpdate is a time of day, so it wraps around at midnight, and a
+    // timeline a little ahead of our clock was updated just now
+    private long age(LocalTime lastUpdate) {
+        long day = Duration.ofDays(1).toNanos();
+        long age = Math.floorMod(Duration.between(lastUpdate, this.now()).toNanos(), day);
+        return age > day / 2 ? 0 : age;
+    }
+
+    private synchronized void scheduleExpiry(String username, LocalTime lastUpdate) {
+        Expiry expiry = new Expiry(System.nanoTime() - this.age(lastUpdate), username);
+        Expiry previous = this.expiryOf.put(username, expiry);
+        if (previous != null)
+            this.expiries.remove(previous);
+        this.expiries.add(expiry);
+    }
+
+    private synchronized void scheduleExpiries() {
+        this.expiries.clear();
+        this.expiryOf.clear();
+        for (String username : this.cache.getUsernames())
+            this.scheduleExpiry(username, this.cache.getLastUpdate(username));
+    }
 
-        for (Timeline timeline : this.timelines.values()) {
-            // don't delete own timeline
-            if (timeline.getUsername().equals(me))
+    // Removes the cached timelines that expired, called periodically
+    public synchronized void cleanup() {
+        long keepTime = maxKeepTime * 1_000_000_000L;
+        long now = System.nanoTime();
+        while (!this.expiries.isEmpty() && now - this.expiries.first().updated() >= keepTime) {
+            String username = this.expiries.pollFirst().username();
+            this.expiryOf.remove(username);
+            if (!this.cache.contains(username))
                 continue;
 
-            long diff = Duration.between(timeline.getLastUpdate(), currentTime).toSeconds(); // TODO: use minutes maybe?
-
-            // remove timeline if is older than specified time
-            if (diff > maxKeepTime){
-                System.out.println(me + " CLEANUP " + timeline.getUsername());
-                this.timelines.remove(timeline.getUsername());
-                try {
-                    if (!timeline.remove(this.timelines_folder)) {
-                        System.out.println("Couldn't delete timeline: " + timeline.getUsername());
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            System.out.println(me + " CLEANUP " + username);
+            try {
+                this.cache.remove(username);
+                this.unindex(username);
+            } catch (IOException e) {
+                System.err.println("Error: Couldn't remove timeline of " + username + ".");
+                e.printStackTrace();
             }
         }
     }
 
+    public MerkleTree getMerkleTree() {
+        Map<String, Long> hashes = this.cache.getHashes();
+        hashes.put(this.me, this.timeline.getHash());
+        return new MerkleTree(hashes);
+    }
+
+    // Changes to the index drop the cached results of the queries with the terms they touch
+    // The feed follows the same timelines as the index
+    private void index(Timeline timeline) {
+        this.searchCache.invalidate(this.searchIndex.put(timeline));
+        this.feed.put(timeline);
+    }
+
+    private void unindex(String username) {
+        this.searchCache.invalidate(this.searchIndex.remove(username));
+        this.feed.remove(username);
+    }
+
+    // Best posts of our timeline and of the cached ones kept in memory for the query, best first, at most limit
+    // of them
+    // Repeated queries are answered from the results of the last time until a post with their terms changes
+    public synchronized List<SearchResult> search(SearchQuery query, int limit) {
+        String key = query + "#" + limit;
+        List<SearchCache.Hit> cached = this.searchCache.get(key);
+        if (cached != null) {
+            List<SearchResult> results = this.resolve(cached);
+            if (results != null)
+                return results;
+        }
+
+        PriorityQueue<SearchResult> top = new PriorityQueue<>(); // worst on top, to be dropped past the limit
+        for (Map.Entry<String, Map<Integer, Double>> hit : this.searchIndex.search(query).entrySet()) {
+            Timeline timeline = this.getTimeline(hit.getKey());
+            if (timeline == null) { // dropped from the cache since it was indexed
+                this.unindex(hit.getKey());
+                continue;
+            }
+            for (Map.Entry<Integer, Double> scored : hit.getValue().entrySet()) {
+                Post post = timeline.getPost(scored.getKey());
+                if (post == null || !query.matches(post)) // phrases are checked on the content
+                    continue;
+                top.add(new SearchResult(post, scored.getValue()));
+                if (top.size() > limit)
+                    top.poll();
+            }
+        }
+
+        List<SearchResult> results = new ArrayList<>(top);
+        results.sort(Collections.reverseOrder());
+        this.searchCache.put(key, query.getTokens(), results.stream().map(SearchCache.Hit::new).toList());
+        return results;
+    }
+
+    // Posts of cached search results, null if a timeline of them is no longer stored
+    private List<SearchResult> resolve(List<SearchCache.Hit> hits) {
+        List<SearchResult> results = new ArrayList<>(hits.size());
+        for (SearchCache.Hit hit : hits) {
+            Timeline timeline = this.getTimeline(hit.owner());
+            Post post = timeline == null ? null : timeline.getPost(hit.postId());
+            if (post == null)
+                return null;
+            results.add(new SearchResult(post, hit.score()));
+        }
+        return results;
+    }
+
+    // Every post of the stored timelines that matches the search, best first
     public List<Post> getRelatedPosts(String search) {
-        Timeline timeline = this.timelines.get(this.me);
-        return timeline.getRelatedPosts(search);
+        List<Post> posts = new ArrayList<>();
+        for (SearchResult result : this.search(SearchQuery.parse(search), Integer.MAX_VALUE))
+            posts.add(result.getPost());
+        return posts;
+    }
+
+    // Posts of the stored timeline made in [from, to), oldest first, at most limit of them, null if we don't have it
+    public synchronized List<Post> getPosts(String username, LocalTime from, LocalTime to, int limit) {
+        Timeline timeline = this.getTimeline(username);
+        return timeline == null ? null : timeline.getPosts(from, to, limit);
+    }
+
+    // Posts of the stored timelines among the given ones made in [from, to), oldest first, at most limit of them
+    public synchronized List<Post> getPosts(Collection<String> usernames, LocalTime from, LocalTime to, int limit) {
+        List<Post> posts = new ArrayList<>();
+        for (String username : usernames) {
+            Timeline timeline = this.getTimeline(username);
+            if (timeline != null) // each one can't give more than the limit
+                posts.addAll(timeline.getPosts(from, to, limit));
+        }
+        posts.sort(Comparator.comparing(Post::getTimestamp));
+        return posts.size() > limit ? new ArrayList<>(posts.subList(0, limit)) : posts;
+    }
+
+    // Words of the posts we can answer searches with
+    public Set<String> getSearchTerms() {
+        return this.searchIndex.getTokens();
+    }
+
+    // Last update of the copy of the timeline that searches answer from, null if we don't have it
+    public LocalTime getFreshness(String username) {
+        return this.searchIndex.getFreshness(username);
+    }
+
+    // for testing
+    public CompletableFuture<Void> getIndexing() {
+        return indexing;
     }
 
     public void printTimelines() {
-        for (Timeline timeline : this.timelines.values())
+        for (Timeline timeline : this.getTimelines())
             System.out.println(timeline);
     }
 
+    private boolean isOwn(String username) {
+        return this.me.equals(username);
+    }
+
     public boolean hasTimeline(String wantedUser) {
-        return timelines.containsKey(wantedUser);
+        return this.isOwn(wantedUser) || this.cache.contains(wantedUser);
     }
 
-    public Timeline getTimeline(String wantedUser) {
-        return this.timelines.get(wantedUser);
+    // Changes to cached timelines must go through this class to be kept
+    // Decoding a cached timeline may index it, under the lock that searches cache their results with
+    public synchronized Timeline getTimeline(String wantedUser) {
+        return this.isOwn(wantedUser) ? this.timeline : this.cache.get(wantedUser);
+    }
+
+    public Timeline getOwnTimeline() {
+        return this.timeline;
+    }
+
+    public LocalTime getLastUpdate(String username) {
+        return this.isOwn(username) ? this.timeline.getLastUpdate() : this.cache.getLastUpdate(username);
+    }
+
+    // Decodes every cached timeline
+    public synchronized List<Timeline> getTimelines() {
+        List<Timeline> timelines = new ArrayList<>();
+        timelines.add(this.timeline);
+        for (String username : this.cache.getUsernames()) {
+            Timeline cached = this.cache.get(username);
+            if (cached != null)
+                timelines.add(cached);
+        }
+        return timelines;
     }
 
     public Set<String> getStoredTimelines() {
-        return this.timelines.keySet();
+        Set<String> usernames = new HashSet<>(this.cache.getUsernames());
+        usernames.add(this.me);
+        return usernames;
     }
 
     public Long getClockOffset() {
@@ -194,7 +531,7 @@ public class TimelineInfo {
     }
 
     // for testing
-    public void setMaxKeepTime(int maxKeepTime) {
+    public synchronized void setMaxKeepTime(int maxKeepTime) {
         this.maxKeepTime = maxKeepTime;
     }
 }
@@ -0,0 +1,294 @@
+package main.model.timelines;
+
+import main.controller.message.MessageBuilder;
+import main.model.Compression;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Log-structured storage of a peer's timelines
+// Every change is appended to the log, so that a write costs the size of the change and not of the timeline.
+// Once the log grows past COMPACT_SIZE, a snapshot of every timeline is written and the log starts over.
+// Recovery loads the latest snapshot and replays the log on top of it.
+// Records are [int length][int CRC32C][bytes], recovery stops at the first bad record and cuts the log there.
+// The log doubles as a write-ahead log: sync() forces it with group commit, callers that want their records
+// on disk while a force is in flight wait for it (or the next one), so concurrent writers share a single force.
+public class TimelineStore {
+    public static final String LOG = "timelines.log";
+    public static final String SNAPSHOT = "timelines.snapshot";
+    public static final long COMPACT_SIZE = 1 << 20; // log size that triggers a snapshot (in bytes)
+    public static final int FRAME = Integer.BYTES + Integer.BYTES; // length and CRC32C of each record
+
+    private final File folder;
+    private final File logFile;
+    private final File snapshotFile;
+    private final List<File> legacyFiles; // timelines saved before the log, read into it once (see LegacyTimelines)
+    private volatile FileChannel log;
+    private long logSize;
+    private long appended; // records appended to the log since the store was opened
+    // Group commit state, guarded by syncLock
+    private final Object syncLock = new Object();
+    private long synced; // records known to be on disk
+    private boolean syncing; // a force (or a compaction) is in flight
+    private long forces; // of the log since the store was opened
+
+    public TimelineStore(File timelinesFolder) {
+        this.folder = timelinesFolder;
+        this.legacyFiles = new ArrayList<>();
+        this.logFile = new File(timelinesFolder, LOG);
+        this.snapshotFile = new File(timelinesFolder, SNAPSHOT);
+        this.logSize = logFile.length();
+    }
+
+    public synchronized Map<String, Timeline> recover() throws IOException, ClassNotFoundException {
+        Map<String, Timeline> timelines = new HashMap<>();
+        if (!logFile.exists() && !snapshotFile.exists()) {
+            // first start since timelines were saved one per file, they must be kept by the caller
+            for (File file : LegacyTimelines.find(folder)) {
+                Timeline timeline = LegacyTimelines.read(file);
+                if (timeline != null) {
+                    timelines.put(timeline.getUsername(), timeline);
+                    this.legacyFiles.add(file);
+                }
+            }
+            return timelines;
+        }
+
+        if (replay(snapshotFile, timelines) < snapshotFile.length())
+            System.err.println("Error: Snapshot of timelines is corrupt, some timelines were lost.");
+
+        long valid = replay(logFile, timelines);
+        if (valid < logFile.length()) {
+            // record cut by a crash (or corrupt), drop it and what follows so that new records are appended after
+            // the last good one
+            System.err.println("Error: Log of timelines is corrupt after byte " + valid + ", dropping the rest.");
+            try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+            this.logSize = valid;
+        }
+        return timelines;
+    }
+
+    // Recovery read timelines saved one per file by an earlier version of the peer
+    public synchronized boolean hasLegacyFiles() {
+        return !this.legacyFiles.isEmpty();
+    }
+
+    // Called once the timelines read from them are kept elsewhere
+    public synchronized void deleteLegacyFiles() throws IOException {
+        for (File file : this.legacyFiles)
+            Files.deleteIfExists(file.toPath());
+        this.legacyFiles.clear();
+    }
+
+    // Applies the records of the file until the first bad one, returns where the good records end
+    private static long replay(File file, Map<String, Timeline> timelines) throws IOException {
+        if (!file.exists())
+            return 0;
+
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] bytes;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || length > file.length() - valid)
+                        return valid; // corrupt length
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                } catch (EOFException e) { // end of file, or record cut by a crash
+                    return valid;
+                }
+                if (checksum(bytes) != checksum)
+                    return valid;
+
+                StoreRecord record;
+                try {
+                    record = (StoreRecord) MessageBuilder.objectFromByteArray(Compression.decode(bytes));
+                } catch (IOException | ClassNotFoundException e) {
+                    return valid;
+                }
+                apply(record, timelines);
+                valid += FRAME + bytes.length;
+            }
+        }
+    }
+
+    public static int checksum(byte[] bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static void apply(StoreRecord record, Map<String, Timeline> timelines) {
+        switch (record.getType()) {
+            case TIMELINE -> timelines.put(record.getUsername(), record.getTimeline());
+            case CHANGE -> {
+                Timeline timeline = timelines.get(record.getUsername());
+                if (timeline != null)
+                    timeline.applyDelta(record.getChange());
+            }
+            case REMOVE -> timelines.remove(record.getUsername());
+        }
+    }
+
+    public static byte[] encode(StoreRecord record) throws IOException {
+        return Compression.encode(MessageBuilder.objectToByteArray(record), true);
+    }
+
+    public long append(StoreRecord record) throws IOException {
+        return this.append(List.of(encode(record)));
+    }
+
+    // Appends encoded records with a single write, returns the number of records appended so far
+    public synchronized long append(List<byte[]> records) throws IOException {
+        if (records.isEmpty())
+            return this.appended;
+        if (this.log == null)
+            this.log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+
+        int size = 0;
+        for (byte[] bytes : records)
+            size += FRAME + bytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] bytes : records)
+            buffer.putInt(bytes.length).putInt(checksum(bytes)).put(bytes);
+        buffer.flip();
+        while (buffer.hasRemaining())
+            this.log.write(buffer);
+
+        this.logSize += size;
+        this.appended += records.size();
+        return this.appended;
+    }
+
+    public synchronized long getAppended() {
+        return this.appended;
+    }
+
+    // Returns once the first given number of records are on disk
+    public void sync(long records) throws IOException {
+        if (!this.startSync(records))
+            return; // a force made by another caller already wrote them
+
+        long target = this.getAppended(); // records appended until now are taken by this force
+        try {
+            FileChannel channel = this.log;
+            if (channel != null) {
+                channel.force(false);
+                synchronized (this.syncLock) {
+                    ++this.forces;
+                }
+            }
+        } catch (IOException e) {
+            target = 0;
+            throw e;
+        } finally {
+            this.finishSync(target);
+        }
+    }
+
+    // Waits for the force in flight, returns false if the records are already on disk
+    private boolean startSync(long records) throws InterruptedIOException {
+        synchronized (this.syncLock) {
+            while (this.syncing) {
+                try {
+                    this.syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (this.synced >= records)
+                return false;
+            this.syncing = true;
+            return true;
+        }
+    }
+
+    private void finishSync(long synced) {
+        synchronized (this.syncLock) {
+            this.synced = Math.max(this.synced, synced);
+            this.syncing = false;
+            this.syncLock.notifyAll();
+        }
+    }
+
+    public long getForces() {
+        synchronized (this.syncLock) {
+            return this.forces;
+        }
+    }
+
+    public synchronized boolean needsCompaction() {
+        return this.logSize > COMPACT_SIZE;
+    }
+
+    // Writes every timeline to a new snapshot and starts an empty log
+    // Callers must make sure that the timelines don't change while the snapshot is taken
+    public void compact(Collection<Timeline> timelines) throws IOException {
+        this.startSync(Long.MAX_VALUE); // the log can't be forced while it is replaced
+        long target = 0;
+        try {
+            synchronized (this) {
+                File tmp = new File(snapshotFile.getPath() + ".tmp");
+                try (FileOutputStream fos = new FileOutputStream(tmp);
+                     DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+                    for (Timeline timeline : timelines) {
+                        byte[] bytes = encode(StoreRecord.timeline(timeline));
+                        out.writeInt(bytes.length);
+                        out.writeInt(checksum(bytes));
+                        out.write(bytes);
+                    }
+                    out.flush();
+                    fos.getFD().sync();
+                }
+                Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+
+                // snapshot has every change in the log, start over
+                if (this.log != null)
+                    this.log.close();
+                this.log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                this.log.force(true);
+                this.logSize = 0;
+                target = this.appended; // every record appended so far is in the snapshot
+            }
+        } finally {
+            this.finishSync(target);
+        }
+    }
+
+    // Forces every appended record to disk and closes the log
+    public void close() throws IOException {
+        this.startSync(Long.MAX_VALUE);
+        long target = 0;
+        try {
+            synchronized (this) {
+                if (this.log != null) {
+                    this.log.force(false);
+                    this.log.close();
+                    this.log = null;
+                }
+                target = this.appended;
+            }
+        } finally {
+            this.finishSync(target);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package main.model.timelines.cache;
+
+import java.util.List;
+
+// Decides which timelines stay decoded in memory, within a budget of bytes
+public interface CachePolicy {
+    // Records a hit on a key that is kept
+    void access(String key);
+
+    // Keeps the key (or updates its size), returns the keys that must be evicted to respect the budget
+    // The key itself may be evicted, if the policy doesn't admit it
+    List<String> add(String key, long size);
+
+    void remove(String key);
+
+    boolean contains(String key);
+}
@@ -0,0 +1,69 @@
+package main.model.timelines.cache;
+
+import java.util.*;
+
+// Evicts the least recently used keys
+public class LruPolicy implements CachePolicy {
+    private final long budget; // in bytes
+    private final LinkedHashMap<String, Long> sizes; // access ordered, eldest first
+    private long size;
+
+    public LruPolicy(long budget) {
+        this.budget = budget;
+        this.sizes = new LinkedHashMap<>(16, 0.75f, true);
+        this.size = 0;
+    }
+
+    @Override
+    public void access(String key) {
+        this.sizes.get(key);
+    }
+
+    @Override
+    public List<String> add(String key, long size) {
+        return new ArrayList<>(this.put(key, size).keySet());
+    }
+
+    // Same as add, returns the size of each evicted key
+    Map<String, Long> put(String key, long size) {
+        Map<String, Long> evicted = new LinkedHashMap<>();
+        if (size > this.budget) { // would flush everything else and still not fit
+            this.remove(key);
+            evicted.put(key, size);
+            return evicted;
+        }
+
+        Long previous = this.sizes.put(key, size);
+        this.size += size - (previous == null ? 0 : previous);
+
+        Iterator<Map.Entry<String, Long>> it = this.sizes.entrySet().iterator();
+        while (this.size > this.budget && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            this.size -= eldest.getValue();
+            evicted.put(eldest.getKey(), eldest.getValue());
+            it.remove();
+        }
+        return evicted;
+    }
+
+    @Override
+    public void remove(String key) {
+        Long previous = this.sizes.remove(key);
+        if (previous != null)
+            this.size -= previous;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return this.sizes.containsKey(key);
+    }
+
+    public String eldest() {
+        return this.sizes.isEmpty() ? null : this.sizes.keySet().iterator().next();
+    }
+
+    // Bytes left before something has to be evicted
+    public long room() {
+        return this.budget - this.size;
+    }
+}
@@ -0,0 +1,94 @@
+package main.model.timelines.cache;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// W-TinyLFU: new keys go to a small LRU window, the ones leaving it only enter the main LRU if they were
+// used more often than the key they would evict there. Frequencies are estimated by a count-min sketch
+// that is halved every few accesses, so that old popularity fades.
+// A burst of lookups that are made once passes through the window without evicting the popular timelines.
+public class TinyLfuPolicy implements CachePolicy {
+    public static final double WINDOW = 0.01; // share of the budget used by the window
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1024; // counters per row, power of two
+    private static final int RESET = WIDTH * 10; // accesses until the counters are halved
+
+    private final LruPolicy window;
+    private final LruPolicy main;
+    private final int[][] counters;
+    private int accesses;
+
+    public TinyLfuPolicy(long budget) {
+        long windowBudget = (long) (budget * WINDOW);
+        this.window = new LruPolicy(windowBudget);
+        this.main = new LruPolicy(budget - windowBudget);
+        this.counters = new int[DEPTH][WIDTH];
+        this.accesses = 0;
+    }
+
+    private int index(String key, int row) {
+        return Hashing.murmur3_32_fixed(row).hashString(key, StandardCharsets.UTF_8).asInt() & (WIDTH - 1);
+    }
+
+    private void increment(String key) {
+        for (int row = 0; row < DEPTH; ++row)
+            this.counters[row][this.index(key, row)]++;
+
+        if (++this.accesses >= RESET) {
+            for (int[] row : this.counters)
+                for (int i = 0; i < row.length; ++i)
+                    row[i] >>= 1;
+            this.accesses /= 2;
+        }
+    }
+
+    public int frequency(String key) {
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; ++row)
+            frequency = Math.min(frequency, this.counters[row][this.index(key, row)]);
+        return frequency;
+    }
+
+    @Override
+    public void access(String key) {
+        this.increment(key);
+        if (this.window.contains(key))
+            this.window.access(key);
+        else
+            this.main.access(key);
+    }
+
+    @Override
+    public List<String> add(String key, long size) {
+        this.increment(key);
+        if (this.main.contains(key)) // already admitted, only the size changed
+            return this.main.add(key, size);
+
+        List<String> evicted = new ArrayList<>();
+        for (Map.Entry<String, Long> candidate : this.window.put(key, size).entrySet()) {
+            // candidate leaves the window, it competes with the main victim for its room
+            String victim = this.main.eldest();
+            if (candidate.getValue() <= this.main.room() || victim == null
+                    || this.frequency(candidate.getKey()) > this.frequency(victim))
+                evicted.addAll(this.main.add(candidate.getKey(), candidate.getValue()));
+            else
+                evicted.add(candidate.getKey());
+        }
+        return evicted;
+    }
+
+    @Override
+    public void remove(String key) {
+        this.window.remove(key);
+        this.main.remove(key);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return this.window.contains(key) || this.main.contains(key);
+    }
+}
@@ -0,0 +1,74 @@
+import main.controller.message.MessageBuilder;
+import main.model.Compression;
+import main.model.timelines.Timeline;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// Measures where deflate pays off, to pick Compression.THRESHOLD. Not part of the suite (the name doesn't match
+// the tests surefire runs), run it with: mvn test -Dtest=CompressionBenchmark
+// For each size of timeline, prints the raw and deflated size of the block and the time to encode and decode it
+// both ways. Below the threshold, deflate saves few bytes and costs more than copying them.
+public class CompressionBenchmark {
+    private static final int RUNS = 500;
+
+    private Timeline timeline(int posts) {
+        Timeline timeline = new Timeline("u1", 0L);
+        for (int i = 0; i < posts; ++i)
+            timeline.addPost("Going to the beach today with some friends, post number " + i);
+        return timeline;
+    }
+
+    // Average time of a run (in ns)
+    private static long time(Runnable run) {
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i)
+            run.run();
+        return (System.nanoTime() - start) / RUNS;
+    }
+
+    private static byte[] decode(byte[] block) {
+        try {
+            return Compression.decode(block);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Forces deflate whatever the size, Compression.encode would keep small blocks raw
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(bytes);
+        deflater.finish();
+        byte[] buffer = new byte[bytes.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Test
+    public void payloadSizes() throws IOException {
+        for (int i = 0; i < RUNS; ++i) // warm up
+            decode(Compression.encode(MessageBuilder.objectToByteArray(timeline(10)), true));
+
+        System.out.printf("%5s %8s %8s %5s %10s %10s %10s %10s%n", "posts", "raw", "deflated", "%",
+                "raw enc", "raw dec", "zip enc", "zip dec");
+        for (int posts : new int[]{0, 1, 2, 4, 8, 16, 32, 100, 1000}) {
+            byte[] bytes = MessageBuilder.objectToByteArray(timeline(posts));
+            byte[] raw = Compression.encode(bytes, false);
+            byte[] deflated = deflate(bytes);
+            byte[] block = Compression.encode(bytes, true);
+
+            long rawEncode = time(() -> Compression.encode(bytes, false));
+            long rawDecode = time(() -> decode(raw));
+            long zipEncode = time(() -> deflate(bytes));
+            long zipDecode = block.length < raw.length ? time(() -> decode(block)) : 0; // 0: kept raw
+
+            System.out.printf("%5d %8d %8d %4d%% %7d ns %7d ns %7d ns %7d ns%n", posts, bytes.length,
+                    deflated.length, deflated.length * 100 / bytes.length, rawEncode, rawDecode, zipEncode,
+                    zipDecode);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import main.controller.message.MessageBuilder;
+import main.model.Compression;
+import main.model.message.response.query.QueryHitMessage;
+import main.model.timelines.Timeline;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressionTest {
+    private Timeline timeline(int posts) {
+        Timeline timeline = new Timeline("u1", 0L);
+        for (int i = 0; i < posts; ++i)
+            timeline.addPost("Going to the beach today with some friends, post number " + i);
+        return timeline;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        byte[] small = new byte[Compression.THRESHOLD - 1];
+        byte[] encoded = Compression.encode(small, true);
+        assertEquals(small.length + 1, encoded.length); // below the threshold, kept raw
+        assertArrayEquals(small, Compression.decode(encoded));
+
+        byte[] big = MessageBuilder.objectToByteArray(timeline(100));
+        encoded = Compression.encode(big, true);
+        assertTrue(encoded.length < big.length / 2);
+        assertArrayEquals(big, Compression.decode(encoded));
+        assertArrayEquals(big, Compression.decode(Compression.encode(big, false)));
+
+        // plain serialized objects, written before blocks were flagged
+        assertArrayEquals(big, Compression.decode(big));
+    }
+
+    // Corrupt files and hostile peers give blocks whose length is wrong
+    @Test
+    public void badBlocks() {
+        byte[] big = new byte[4 * Compression.THRESHOLD];
+        Arrays.fill(big, (byte) 'a');
+        byte[] encoded = Compression.encode(big, true);
+
+        for (int length : new int[]{-1, Integer.MIN_VALUE, Integer.MAX_VALUE, big.length - 1, big.length + 1}) {
+            byte[] bad = encoded.clone();
+            ByteBuffer.wrap(bad, 1, Integer.BYTES).putInt(length);
+            assertThrows(IOException.class, () -> Compression.decode(bad));
+        }
+        assertThrows(IOException.class, () -> Compression.decode(Arrays.copyOf(encoded, 3)));
+        assertThrows(IOException.class, () -> Compression.decode(Arrays.copyOf(encoded, encoded.length - 2)));
+    }
+
+    @Test
+    public void compressedHit() throws IOException, ClassNotFoundException {
+        Timeline timeline = timeline(100);
+        byte[] raw = MessageBuilder.objectToByteArray(new QueryHitMessage(UUID.randomUUID(), timeline, false));
+        byte[] compressed = MessageBuilder.objectToByteArray(new QueryHitMessage(UUID.randomUUID(), timeline, true));
+        assertTrue(compressed.length < raw.length / 2);
+
+        QueryHitMessage hit = (QueryHitMessage) MessageBuilder.objectFromByteArray(compressed);
+        assertEquals(timeline, hit.getTimeline());
+        assertFalse(hit.isDelta());
+
+        QueryHitMessage delta = (QueryHitMessage) MessageBuilder.objectFromByteArray(MessageBuilder.objectToByteArray(
+                new QueryHitMessage(UUID.randomUUID(), timeline.getDelta(90), true)));
+        assertEquals(10, delta.getDelta().getPosts().size());
+
+        QueryHitMessage notModified = (QueryHitMessage) MessageBuilder.objectFromByteArray(
+                MessageBuilder.objectToByteArray(new QueryHitMessage(UUID.randomUUID())));
+        assertTrue(notModified.isNotModified());
+    }
+
+    // Blocks are only compressed where it pays off: raw below the threshold, smaller above it
+    @Test
+    public void compressedAboveThreshold() throws IOException {
+        for (int posts : new int[]{0, 1, 5, 10, 100, 1000}) {
+            byte[] bytes = MessageBuilder.objectToByteArray(timeline(posts));
+            byte[] encoded = Compression.encode(bytes, true);
+            if (bytes.length < Compression.THRESHOLD)
+                assertEquals(bytes.length + 1, encoded.length);
+            else
+                assertTrue(encoded.length < bytes.length);
+            assertArrayEquals(bytes, Compression.decode(encoded));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import main.model.timelines.BackupService;
+import main.model.timelines.Durability;
+import main.model.timelines.TimelineInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Measures what each durability costs. Not part of the suite (the name doesn't match the tests surefire runs),
+// run it with: mvn test -Dtest=DurabilityBenchmark
+// Posts from several threads at once and prints, per durability, the throughput and latency of the posts and
+// the writes they took (see BackupService.Stats)
+public class DurabilityBenchmark {
+    private static final String USERNAME = "durability_benchmark";
+    private static final int THREADS = 8;
+    private static final int POSTS = 250; // per thread
+
+    @AfterEach
+    public void cleanup() {
+        TestUtils.deleteDirectory(new File(TimelineInfo.FOLDER + USERNAME));
+    }
+
+    private void measure(Durability durability) throws Exception {
+        TestUtils.deleteDirectory(new File(TimelineInfo.FOLDER + USERNAME));
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, durability, BackupService.FLUSH_INTERVAL, 0L);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<long[]>> results = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < THREADS; ++i) {
+            int thread = i;
+            results.add(executor.submit(() -> {
+                long[] latencies = new long[POSTS];
+                for (int j = 0; j < POSTS; ++j) {
+                    long postStart = System.nanoTime();
+                    timelineInfo.addPost(USERNAME, "post " + j + " from thread " + thread);
+                    latencies[j] = System.nanoTime() - postStart;
+                }
+                return latencies;
+            }));
+        }
+        long[] latencies = new long[THREADS * POSTS];
+        for (int i = 0; i < THREADS; ++i)
+            System.arraycopy(results.get(i).get(), 0, latencies, i * POSTS, POSTS);
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        BackupService.Stats stats = timelineInfo.getBackupStats();
+        timelineInfo.close();
+
+        Arrays.sort(latencies);
+        System.out.printf("%-7s %8.0f posts/s, p50 %6d us, p99 %6d us | %5d appended, %5d forces, "
+                        + "add %5d us, commit %5d us (max %6d us)%n", durability,
+                latencies.length / (elapsed / 1e9), latencies[latencies.length / 2] / 1000,
+                latencies[latencies.length * 99 / 100] / 1000, stats.appended(), stats.forces(),
+                stats.averageAddNanos() / 1000, stats.averageCommitNanos() / 1000, stats.maxCommitNanos() / 1000);
+    }
+
+    @Test
+    public void durabilities() throws Exception {
+        for (Durability durability : Durability.values())
+            measure(durability);
+    }
+}
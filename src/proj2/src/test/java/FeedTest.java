@@ -0,0 +1,94 @@
+import main.model.timelines.Durability;
+import main.model.timelines.Post;
+import main.model.timelines.Timeline;
+import main.model.timelines.TimelineInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FeedTest {
+    private static final String USERNAME = "feed_test";
+
+    @AfterEach
+    public void cleanup() {
+        TestUtils.deleteDirectory(new File(TimelineInfo.FOLDER + USERNAME));
+    }
+
+    private static List<String> contents(List<Post> posts) {
+        return posts.stream().map(Post::getContent).toList();
+    }
+
+    // Every page of the feed, following the cursor
+    private static List<Post> readFeed(TimelineInfo timelineInfo, int pageSize) {
+        List<Post> feed = new ArrayList<>();
+        List<Post> page = timelineInfo.feed(null, pageSize);
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= pageSize);
+            feed.addAll(page);
+            page = timelineInfo.feed(page.get(page.size() - 1), pageSize);
+        }
+        return feed;
+    }
+
+    @Test
+    public void pagesMergeTimelines() throws InterruptedException {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L);
+        Timeline u1 = new Timeline("u1", 0L), u2 = new Timeline("u2", 0L);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) { // interleaved in time
+            expected.add(u1.addPost("u1 " + i).getContent());
+            Thread.sleep(2);
+            expected.add(u2.addPost("u2 " + i).getContent());
+            Thread.sleep(2);
+            expected.add(timelineInfo.addPost(USERNAME, "me " + i).getContent());
+            Thread.sleep(2);
+        }
+        timelineInfo.addTimeline(u1);
+        timelineInfo.addTimeline(u2);
+
+        assertEquals(expected.subList(0, 5), contents(timelineInfo.feed(null, 5)));
+        assertEquals(expected, contents(readFeed(timelineInfo, 5)));
+        assertEquals(expected, contents(readFeed(timelineInfo, 1)));
+        assertEquals(expected, contents(readFeed(timelineInfo, 100)));
+
+        Post fifth = timelineInfo.feed(null, 5).get(4);
+        assertEquals(expected.subList(5, 8), contents(timelineInfo.feed(fifth, 3)));
+        timelineInfo.close();
+    }
+
+    @Test
+    public void feedFollowsChanges() throws InterruptedException {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L);
+        Timeline u1 = new Timeline("u1", 0L);
+        u1.addPost("first");
+        Thread.sleep(2);
+        timelineInfo.addTimeline(u1);
+        timelineInfo.addPost(USERNAME, "mine");
+        Thread.sleep(2);
+        assertEquals(List.of("first", "mine"), contents(readFeed(timelineInfo, 10)));
+
+        // changes to our timeline and to the cached one
+        Timeline owner = new Timeline("u1", 0L);
+        owner.applyDelta(u1.getDelta(0));
+        timelineInfo.putPost(owner.addPost("second"));
+        timelineInfo.updatePost(USERNAME, 1, "edited");
+        assertEquals(List.of("first", "edited", "second"), contents(readFeed(timelineInfo, 2)));
+
+        timelineInfo.deletePost("u1", 1);
+        timelineInfo.deletePost(USERNAME, 1);
+        assertEquals(List.of("second"), contents(readFeed(timelineInfo, 2)));
+
+        // a newer copy of the cached timeline replaces its posts
+        owner.deletePost(2);
+        owner.addPost("third");
+        timelineInfo.addTimeline(owner);
+        assertEquals(List.of("first", "third"), contents(readFeed(timelineInfo, 2)));
+        timelineInfo.close();
+    }
+}
@@ -1,5 +1,8 @@
 import main.Peer;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import main.controller.message.MessageSender;
+import main.model.neighbour.Neighbour;
 import main.model.timelines.Post;
 import main.model.timelines.Timeline;
 import org.junit.jupiter.api.AfterAll;
@@ -10,12 +13,14 @@ import utils.TestUtils;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.*;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class PeerQueryTest {
     private Peer peer1;
@@ -95,6 +100,89 @@ public class PeerQueryTest {
 
     }
 
+    @Test
+    public void coalescedQueries() throws InterruptedException, ExecutionException {
+        MessageSender.addIgnoredMsg("PING");
+        MessageSender.addIgnoredMsg("PONG");
+        Thread.sleep(5000); // Wait for peers to add eachother as neighbours
+
+        peer5.addPost("hello");
+
+        // concurrent lookups for the same username share the one in flight
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Timeline>> lookups = new ArrayList<>();
+        for (int i = 0; i < 4; ++i)
+            lookups.add(executor.submit(() -> peer1.requestTimeline("u5")));
+
+        Timeline expected = peer5.getPeerInfo().getTimelineInfo().getTimeline("u5");
+        for (Future<Timeline> lookup : lookups)
+            assertEquals(expected, lookup.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void notModified() throws InterruptedException {
+        MessageSender.addIgnoredMsg("PING");
+        MessageSender.addIgnoredMsg("PONG");
+        Thread.sleep(5000); // Wait for peers to add eachother as neighbours
+
+        peer5.addPost("hello");
+        Timeline peer5Timeline = peer1.requestTimeline("u5");
+
+        // nothing changed, responders only confirm that our copy is up to date
+        Timeline peer5Timeline2 = peer1.requestTimeline("u5");
+        assertSame(peer5Timeline, peer5Timeline2);
+        assertEquals(peer5.getPeerInfo().getTimelineInfo().getTimeline("u5"), peer5Timeline2);
+    }
+
+    @Test
+    public void knownMiss() throws InterruptedException {
+        MessageSender.addIgnoredMsg("PING");
+        MessageSender.addIgnoredMsg("PONG");
+        Thread.sleep(5000); // Wait for peers to add eachother as neighbours
+
+        assertNull(peer1.requestTimeline("u9"));
+        assertTrue(peer1.getPeerInfo().getQueryInfo().isKnownMiss("u9"));
+
+        // repeated miss is answered from the negative cache, without waiting for hits
+        long start = System.currentTimeMillis();
+        assertNull(peer1.requestTimeline("u9"));
+        assertTrue(System.currentTimeMillis() - start < Peer.RESPONSE_TIMEOUT);
+    }
+
+    @Test
+    public void staleMissDoesNotEndLookup() throws InterruptedException, UnknownHostException {
+        InetAddress localhost = InetAddress.getByName("localhost");
+        // requester -> super peer -> {peer with a stale known miss, owner of the timeline}
+        Peer requester = new Peer("m1", localhost, 6);
+        Peer superPeer = new Peer("m2", localhost, 20);
+        Peer stale = new Peer("m3", localhost, 6);
+        Peer owner = new Peer("m4", localhost, 6);
+        List<Peer> peers = List.of(requester, superPeer, stale, owner);
+        for (Peer p : peers) {
+            p.execute(scheduler);
+            p.cancelHooks(); // neighbours are set by hand
+        }
+        assertTrue(superPeer.getPeerInfo().isSuperPeer());
+
+        BloomFilter<String> hasOwner = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), 100);
+        hasOwner.put("m4");
+        requester.addNeighbour(new Neighbour(superPeer.getPeerInfo().getHost()));
+        superPeer.addNeighbour(new Neighbour(stale.getPeerInfo().getHost(), hasOwner));
+        superPeer.addNeighbour(new Neighbour(owner.getPeerInfo().getHost(), hasOwner));
+        stale.getPeerInfo().getQueryInfo().addMiss("m4");
+        owner.addPost("hello");
+
+        // the stale peer answers QUERY_MISS right away, the owner answers QUERY_HIT
+        Timeline timeline = requester.requestTimeline("m4");
+        assertEquals(owner.getPeerInfo().getTimelineInfo().getTimeline("m4"), timeline);
+        assertFalse(superPeer.getPeerInfo().getQueryInfo().isKnownMiss("m4"));
+        assertFalse(requester.getPeerInfo().getQueryInfo().isKnownMiss("m4"));
+
+        for (Peer p : peers)
+            p.stop();
+    }
+
     @Test
     public void search() throws InterruptedException {
         MessageSender.addIgnoredMsg("PING");
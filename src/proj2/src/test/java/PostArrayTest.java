@@ -0,0 +1,113 @@
+import main.controller.message.MessageBuilder;
+import main.model.timelines.Post;
+import main.model.timelines.PostArray;
+import main.model.timelines.Timeline;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PostArrayTest {
+
+    private static List<Integer> ids(List<Post> posts) {
+        return posts.stream().map(Post::getId).toList();
+    }
+
+    @Test
+    public void postsInIdOrder() {
+        PostArray posts = new PostArray();
+        for (int id : List.of(3, 1, 40, 2))
+            assertNull(posts.put(new Post(id, "u1", "post " + id)));
+        assertEquals(4, posts.size());
+        assertEquals(List.of(1, 2, 3, 40), ids(posts.values()));
+
+        Post replaced = posts.get(3);
+        assertSame(replaced, posts.put(new Post(3, "u1", "edited")));
+        assertEquals("edited", posts.get(3).getContent());
+        assertEquals(4, posts.size());
+
+        assertNotNull(posts.remove(2));
+        assertNull(posts.remove(2));
+        assertNull(posts.remove(1000));
+        assertNull(posts.get(-1));
+        assertEquals(List.of(1, 3, 40), ids(posts.values()));
+        assertEquals(3, posts.size());
+    }
+
+    @Test
+    public void tombstonesKeepLatestDeletion() throws Exception {
+        PostArray posts = new PostArray();
+        posts.put(new Post(1, "u1", "kept"));
+        posts.delete(2, 5);
+        posts.delete(2, 3); // older
+        posts.delete(100, 7);
+        assertTrue(posts.isDeleted(2));
+        assertFalse(posts.isDeleted(1));
+        assertEquals(5, posts.getDeletion(2));
+        assertEquals(0, posts.getDeletion(1));
+        assertEquals(2, posts.nextDeleted(0));
+        assertEquals(100, posts.nextDeleted(3));
+        assertEquals(-1, posts.nextDeleted(101));
+
+        // only the live entries are written, the arrays are rebuilt
+        PostArray copy = (PostArray) MessageBuilder.objectFromByteArray(MessageBuilder.objectToByteArray(posts));
+        assertEquals(posts, copy);
+        assertEquals(posts.toString(), copy.toString());
+        assertEquals(2, copy.deletedCount());
+        assertEquals(7, copy.getDeletion(100));
+    }
+
+    @Test
+    public void compactPostsKeepTheirApi() throws Exception {
+        Timeline timeline = new Timeline("u1", 0L);
+        Post post = timeline.addPost("ol\u00e1, mundo");
+        Post copy = (Post) MessageBuilder.objectFromByteArray(MessageBuilder.objectToByteArray(post));
+        assertEquals(post, copy);
+        assertEquals("ol\u00e1, mundo", copy.getContent());
+        assertEquals(post.getTimestamp(), copy.getTimestamp());
+        assertEquals(post.getPostContent(), copy.getPostContent());
+
+        // received posts share the owner of the timeline that keeps them
+        Timeline replica = new Timeline("u1", 0L);
+        assertNotSame(replica.getUsername(), copy.getUsername());
+        replica.putPost(copy);
+        assertSame(replica.getUsername(), replica.getPost(1).getUsername());
+
+        assertTrue(copy.update("edited"));
+        assertEquals("edited", copy.getContent());
+        assertFalse(copy.hasSignature());
+    }
+
+    @Test
+    public void hostileIdsDontGrowTheArrays() throws Exception {
+        PostArray posts = new PostArray();
+        posts.put(new Post(1, "u1", "first"));
+        posts.put(new Post(Integer.MAX_VALUE, "u1", "far away"));
+        posts.put(new Post(2, "u1", "second"));
+        posts.delete(Integer.MAX_VALUE - 1, 3);
+        posts.delete(5, 4);
+        assertEquals(List.of(1, 2, Integer.MAX_VALUE), ids(posts.values()));
+        assertEquals("far away", posts.get(Integer.MAX_VALUE).getContent());
+        assertEquals(3, posts.getDeletion(Integer.MAX_VALUE - 1));
+        assertEquals(5, posts.nextDeleted(0));
+        assertEquals(Integer.MAX_VALUE - 1, posts.nextDeleted(6));
+        assertEquals(-1, posts.nextDeleted(Integer.MAX_VALUE));
+
+        PostArray copy = (PostArray) MessageBuilder.objectFromByteArray(MessageBuilder.objectToByteArray(posts));
+        assertEquals(posts, copy);
+        assertEquals(2, copy.deletedCount());
+        assertNotNull(posts.remove(Integer.MAX_VALUE));
+        assertEquals(2, posts.size());
+
+        // ids the owner can't have given are dropped by the timeline
+        Timeline owner = new Timeline("u1", 0L);
+        owner.addPost("hello");
+        Timeline replica = new Timeline("u1", 0L);
+        assertFalse(replica.putPost(new Post(0, "u1", "zero")));
+        assertFalse(replica.putPost(new Post(-7, "u1", "negative")));
+        assertTrue(replica.putPost(new Post(Integer.MAX_VALUE, "u1", "hostile")));
+        assertTrue(replica.applyDelta(owner.getDelta(0)));
+        assertEquals(List.of(1, Integer.MAX_VALUE), ids(replica.getPosts()));
+    }
+}
@@ -0,0 +1,68 @@
+import main.model.PeerInfo;
+import main.model.SocketInfo;
+import main.model.message.request.Sender;
+import main.model.message.request.query.QueryMessage;
+import main.model.timelines.Durability;
+import main.model.timelines.TimelineInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QueryMessageTest {
+    private PeerInfo requester;
+    private PeerInfo relay;
+    private PeerInfo superPeer;
+
+    private PeerInfo peerInfo(String username, String port) throws UnknownHostException {
+        return new PeerInfo(username, InetAddress.getByName("localhost"), 20,
+                new TimelineInfo(username, Durability.NONE, 50, 0L), new SocketInfo(port, "9" + port.substring(1)));
+    }
+
+    @BeforeEach
+    public void setUp() throws UnknownHostException {
+        requester = peerInfo("q1", "8201");
+        relay = peerInfo("q2", "8202");
+        superPeer = peerInfo("q3", "8203");
+    }
+
+    @AfterEach
+    public void cleanup() {
+        for (PeerInfo peerInfo : new PeerInfo[]{requester, relay, superPeer}) {
+            peerInfo.getTimelineInfo().close();
+            TestUtils.deleteDirectory(new File(TimelineInfo.FOLDER + peerInfo.getUsername()));
+        }
+    }
+
+    @Test
+    public void versionAndTimeToLive() {
+        QueryMessage query = QueryMessage.withVersion("u1", requester, 7);
+        assertEquals(7, query.getKnownVersion());
+        assertEquals(new QueryMessage("u1", requester).getTimeToLive(), query.getTimeToLive());
+        assertFalse(new QueryMessage("u1", requester).hasKnownVersion());
+    }
+
+    // The lookup of a super peer goes on from the query it coalesces
+    @Test
+    public void forwardedLookup() {
+        QueryMessage query = QueryMessage.withVersion("u1", requester, 7);
+        query.decreaseTtl(); // forwarded by the relay
+        query.addToPath(new Sender(relay));
+
+        QueryMessage lookup = QueryMessage.forwarded(query, superPeer);
+        assertEquals("u1", lookup.getWantedTimeline());
+        assertEquals(query.getTimeToLive(), lookup.getTimeToLive());
+        assertFalse(lookup.hasKnownVersion()); // every requester is answered from the whole timeline
+        assertNotEquals(query.getId(), lookup.getId());
+        // hits come back to the super peer, peers that had the query don't get the lookup
+        assertEquals(new Sender(superPeer).getPort(), lookup.getOriginalSender().getPort());
+        assertTrue(lookup.isInPath(requester));
+        assertTrue(lookup.isInPath(relay));
+    }
+}
@@ -0,0 +1,213 @@
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import main.model.PeerInfo;
+import main.model.timelines.Durability;
+import main.model.timelines.Post;
+import main.model.timelines.SearchCache;
+import main.model.timelines.SearchQuery;
+import main.model.timelines.SearchResult;
+import main.model.timelines.Timeline;
+import main.model.timelines.TimelineInfo;
+import main.model.timelines.cache.LruPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SearchTest {
+    private static final String USERNAME = "search_test";
+    private static final long BUDGET = 1000; // bytes, room for one timeline with a single post
+
+    @AfterEach
+    public void cleanup() {
+        TestUtils.deleteDirectory(new File(TimelineInfo.FOLDER + USERNAME));
+    }
+
+    private static List<Integer> ids(List<Post> posts) {
+        return posts.stream().map(Post::getId).toList();
+    }
+
+    @Test
+    public void indexFollowsChanges() {
+        Timeline timeline = new Timeline("u1", 0L);
+        timeline.addPost("Hello world");
+        timeline.addPost("hello, distributed world!");
+        timeline.addPost("nothing to see");
+        assertEquals(List.of(1, 2), ids(timeline.getRelatedPosts("HELLO")));
+        assertEquals(List.of(2), ids(timeline.getRelatedPosts("world distributed")));
+        assertTrue(timeline.getRelatedPosts("hello moon").isEmpty());
+        assertTrue(timeline.getRelatedPosts("").isEmpty());
+        assertTrue(timeline.getRelatedPosts("hell").isEmpty()); // whole words only
+
+        // changes made after the index was built
+        timeline.updatePost(1, "goodbye world");
+        timeline.deletePost(2);
+        timeline.addPost("hello again");
+        assertEquals(List.of(4), ids(timeline.getRelatedPosts("hello")));
+        assertEquals(List.of(1), ids(timeline.getRelatedPosts("world")));
+
+        // changes received from the owner
+        Timeline replica = new Timeline("u1", 0L);
+        assertTrue(replica.getRelatedPosts("world").isEmpty());
+        replica.applyDelta(timeline.getDelta(0));
+        assertEquals(List.of(1), ids(replica.getRelatedPosts("world")));
+        assertEquals(List.of(4), ids(replica.getRelatedPosts("hello")));
+    }
+
+    @Test
+    public void searchCachedTimelines() throws InterruptedException {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L, new LruPolicy(1 << 20));
+        timelineInfo.addPost(USERNAME, "own post about cats");
+        Timeline foreign = new Timeline("u1", 0L);
+        foreign.addPost("cached post about cats");
+        timelineInfo.addTimeline(foreign);
+        assertEquals(2, timelineInfo.getRelatedPosts("cats").size());
+        assertEquals(foreign.getLastUpdate(), timelineInfo.getFreshness("u1"));
+
+        Post dogs = foreign.addPost("and dogs");
+        timelineInfo.putPost(dogs);
+        timelineInfo.updatePost("u1", 1, "cached post about birds");
+        assertEquals(List.of(USERNAME), timelineInfo.getRelatedPosts("cats").stream().map(Post::getUsername).toList());
+        assertEquals(List.of(1), ids(timelineInfo.getRelatedPosts("birds")));
+        assertEquals(List.of(2), ids(timelineInfo.getRelatedPosts("dogs")));
+        timelineInfo.close();
+
+        // cached timelines are indexed again in the background after a restart
+        timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L, new LruPolicy(1 << 20));
+        timelineInfo.getIndexing().join();
+        assertEquals(List.of("u1"), timelineInfo.getRelatedPosts("birds").stream().map(Post::getUsername).toList());
+        assertEquals(1, timelineInfo.getRelatedPosts("cats").size());
+
+        // expired timelines leave the index
+        timelineInfo.setMaxKeepTime(0);
+        Thread.sleep(10);
+        timelineInfo.cleanup();
+        assertTrue(timelineInfo.getRelatedPosts("birds").isEmpty());
+        assertNull(timelineInfo.getFreshness("u1"));
+        timelineInfo.close();
+    }
+
+    @Test
+    public void indexFollowsCache() {
+        Timeline u1 = new Timeline("u1", 0L), u2 = new Timeline("u2", 0L);
+        u1.addPost("cats");
+        u2.addPost("cats");
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L, new LruPolicy(BUDGET));
+        timelineInfo.addTimeline(u1);
+        assertEquals(List.of("u1"), owners(timelineInfo.getRelatedPosts("cats")));
+        timelineInfo.addTimeline(u2); // evicts u1, and its index
+        assertEquals(List.of("u2"), owners(timelineInfo.getRelatedPosts("cats")));
+        assertNull(timelineInfo.getFreshness("u1"));
+        assertTrue(timelineInfo.hasTimeline("u1"));
+
+        // indexed again once decoded
+        assertNotNull(timelineInfo.getTimeline("u1"));
+        assertEquals(List.of("u1"), owners(timelineInfo.getRelatedPosts("cats")));
+        assertEquals(u1.getLastUpdate(), timelineInfo.getFreshness("u1"));
+        timelineInfo.close();
+
+        // nothing kept, only our own posts are searched
+        timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L);
+        timelineInfo.addPost(USERNAME, "cats");
+        timelineInfo.getIndexing().join();
+        assertEquals(List.of(USERNAME), owners(timelineInfo.getRelatedPosts("cats")));
+        timelineInfo.close();
+    }
+
+    private static List<String> owners(List<Post> posts) {
+        return posts.stream().map(Post::getUsername).toList();
+    }
+
+    private static List<Integer> resultIds(List<SearchResult> results) {
+        return results.stream().map(r -> r.getPost().getId()).toList();
+    }
+
+    @Test
+    public void booleanAndPhraseQueries() {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L);
+        timelineInfo.addPost(USERNAME, "peer to peer networks");           // 1
+        timelineInfo.addPost(USERNAME, "to peer or not to peer");          // 2
+        timelineInfo.addPost(USERNAME, "blockchain peer networks are hyped"); // 3
+        timelineInfo.addPost(USERNAME, "p2p overlays");                    // 4
+        timelineInfo.addPost(USERNAME, "networks, networks and networks"); // 5
+
+        assertEquals(List.of(1, 3), sorted(timelineInfo.search(SearchQuery.parse("peer AND networks"), 10)));
+        assertEquals(List.of(1), sorted(timelineInfo.search(SearchQuery.parse("\"peer to peer\" networks"), 10)));
+        assertEquals(List.of(1, 2), sorted(timelineInfo.search(SearchQuery.parse("peer -blockchain"), 10)));
+        assertEquals(List.of(1, 3, 4), sorted(timelineInfo.search(SearchQuery.parse("p2p OR peer networks"), 10)));
+        assertEquals(List.of(2), sorted(timelineInfo.search(SearchQuery.parse("peer NOT \"peer networks\""), 10)));
+        assertTrue(timelineInfo.search(SearchQuery.parse("-peer"), 10).isEmpty());
+
+        // ranked by BM25: the post that repeats the term comes first, only the best ones are kept
+        List<SearchResult> ranked = timelineInfo.search(SearchQuery.parse("networks"), 2);
+        assertEquals(List.of(5, 1), resultIds(ranked));
+        assertTrue(ranked.get(0).getScore() > ranked.get(1).getScore());
+        timelineInfo.close();
+    }
+
+    private static List<Integer> sorted(List<SearchResult> results) {
+        return resultIds(results).stream().sorted().toList();
+    }
+
+    @Test
+    public void termSummaries() {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L, new LruPolicy(1 << 20));
+        timelineInfo.addPost(USERNAME, "gossip protocols");
+        Timeline foreign = new Timeline("u1", 0L);
+        foreign.addPost("bloom filters");
+        timelineInfo.addTimeline(foreign);
+
+        BloomFilter<String> terms = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8),
+                PeerInfo.TERMS_FILTER_SIZE, PeerInfo.TERMS_FILTER_FPP);
+        timelineInfo.getSearchTerms().forEach(terms::put);
+        timelineInfo.close();
+
+        assertTrue(SearchQuery.parse("Gossip").mightMatch(terms::mightContain));
+        assertTrue(SearchQuery.parse("gossip filters").mightMatch(terms::mightContain)); // in different posts
+        assertFalse(SearchQuery.parse("gossip consensus").mightMatch(terms::mightContain));
+        assertTrue(SearchQuery.parse("consensus OR bloom").mightMatch(terms::mightContain));
+        assertTrue(SearchQuery.parse("bloom -filters").mightMatch(terms::mightContain)); // exclusions aren't routed
+    }
+
+    @Test
+    public void cachedResultsFollowChanges() {
+        SearchCache cache = new SearchCache(2);
+        cache.put("a", Set.of("cats"), List.of());
+        cache.put("b", Set.of("dogs", "cats"), List.of());
+        cache.get("a");
+        cache.put("c", Set.of("birds"), List.of()); // evicts b, the least recently used
+        assertNull(cache.get("b"));
+        cache.invalidate(List.of("dogs", "cats"));
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.size());
+
+        // same normalized query
+        assertEquals(SearchQuery.parse("Cats AND dogs").toString(), SearchQuery.parse("dogs,  cats").toString());
+        assertNotEquals(SearchQuery.parse("cats -dogs").toString(), SearchQuery.parse("cats dogs").toString());
+
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L);
+        timelineInfo.addPost(USERNAME, "cats");
+        assertEquals(List.of(1), resultIds(timelineInfo.search(SearchQuery.parse("cats"), 10)));
+        // answered from the cache, with the post as it is now
+        SearchResult cachedResult = timelineInfo.search(SearchQuery.parse("cats"), 10).get(0);
+        assertSame(timelineInfo.getOwnTimeline().getPost(1), cachedResult.getPost());
+        assertEquals(List.of(1), resultIds(timelineInfo.search(SearchQuery.parse("CATS"), 10)));
+        timelineInfo.addPost(USERNAME, "more cats");
+        assertEquals(2, timelineInfo.search(SearchQuery.parse("cats"), 10).size());
+        timelineInfo.updatePost(USERNAME, 1, "dogs");
+        assertEquals(List.of(2), resultIds(timelineInfo.search(SearchQuery.parse("cats"), 10)));
+        assertEquals(List.of(2), resultIds(timelineInfo.search(SearchQuery.parse("more -dogs"), 10)));
+        timelineInfo.addPost(USERNAME, "more dogs");
+        assertEquals(List.of(2), resultIds(timelineInfo.search(SearchQuery.parse("more -dogs"), 10)));
+        timelineInfo.deletePost(USERNAME, 2);
+        assertTrue(timelineInfo.search(SearchQuery.parse("cats"), 10).isEmpty());
+        timelineInfo.close();
+    }
+}
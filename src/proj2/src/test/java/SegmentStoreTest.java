@@ -0,0 +1,283 @@
+import main.model.timelines.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentStoreTest {
+    private static final File FOLDER = new File("stored_timelines" + File.separator + "segment_test");
+    private static final String USERNAME = "segment_info_test";
+    private SegmentStore cache;
+
+    @BeforeEach
+    public void setUp() {
+        FOLDER.mkdirs();
+        cache = new SegmentStore(FOLDER);
+    }
+
+    @AfterEach
+    public void cleanup() {
+        cache.close();
+        TestUtils.deleteDirectory(FOLDER);
+        TestUtils.deleteDirectory(new File(TimelineInfo.FOLDER + USERNAME));
+    }
+
+    private Timeline cacheTimeline(String username, int posts) throws IOException {
+        Timeline timeline = new Timeline(username, 0L);
+        cache.put(timeline);
+        for (int i = 0; i < posts; ++i) {
+            Post post = timeline.addPost("post number " + i);
+            cache.update(timeline, timeline.getChange(post));
+        }
+        return timeline;
+    }
+
+    @Test
+    public void decodeChain() throws IOException {
+        // longer than a chain, so the whole timeline is written again on the way
+        Timeline timeline = cacheTimeline("u1", SegmentStore.MAX_CHAIN * 2 + 3);
+        timeline.deletePost(2);
+        cache.update(timeline, timeline.getDeletion(2));
+
+        Timeline decoded = cache.get("u1");
+        assertEquals(timeline, decoded);
+        assertEquals(timeline.getVersion(), decoded.getVersion());
+        assertEquals(timeline.getHash(), cache.getHashes().get("u1"));
+        assertEquals(timeline.getLastUpdate(), cache.getLastUpdate("u1"));
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        Timeline t1 = cacheTimeline("u1", 5);
+        Timeline t2 = cacheTimeline("u2", 3);
+        cacheTimeline("u3", 1);
+        cache.remove("u3");
+        cache.close();
+
+        cache = new SegmentStore(FOLDER);
+        assertEquals(t1, cache.get("u1"));
+        assertEquals(t2, cache.get("u2"));
+        assertFalse(cache.contains("u3"));
+        assertNull(cache.get("u3"));
+    }
+
+    @Test
+    public void strayFiles() throws IOException {
+        Timeline t1 = cacheTimeline("u1", 2);
+        cache.close();
+        for (String name : new String[]{"segment-x.seg", "segment-0.seg.bak", "segment-.seg", "segment-99999999.seg"})
+            new File(FOLDER, name).createNewFile();
+
+        cache = new SegmentStore(FOLDER);
+        assertEquals(t1, cache.get("u1"));
+        new File(FOLDER, SegmentStore.MANIFEST).delete();
+        cache = new SegmentStore(FOLDER);
+        assertEquals(t1, cache.get("u1"));
+    }
+
+    @Test
+    public void manifestAndTail() throws IOException {
+        Timeline t1 = cacheTimeline("u1", 5);
+        cache.close();
+        assertTrue(new File(FOLDER, SegmentStore.MANIFEST).exists());
+
+        // records written after the manifest, the store isn't closed as if the peer had crashed
+        cache = new SegmentStore(FOLDER);
+        Timeline t2 = cacheTimeline("u2", 3);
+        Post post = t1.addPost("after the manifest");
+        cache.update(t1, t1.getChange(post));
+        int size = cache.getSize("u1");
+
+        cache = new SegmentStore(FOLDER);
+        assertEquals(t1, cache.get("u1"));
+        assertEquals(t2, cache.get("u2"));
+        assertEquals(size, cache.getSize("u1"));
+        cache.warmUp().join();
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        Timeline kept = cacheTimeline("u1", 3);
+        Timeline churned = new Timeline("u2", 0L);
+        churned.addPost("first");
+        byte[] random = new byte[75_000];
+        new Random(0).nextBytes(random);
+        String big = Base64.getEncoder().encodeToString(random); // doesn't shrink much when compressed
+        for (int i = 0; i < 150; ++i) { // whole timeline rewritten, every previous copy is garbage
+            churned.updatePost(1, big + i);
+            cache.put(churned);
+        }
+        cacheTimeline("u3", 1);
+        cache.remove("u3");
+
+        assertTrue(cache.needsCompaction());
+        long allocated = cache.getAllocated();
+        cache.compact();
+        assertTrue(cache.getAllocated() < allocated / 2);
+        assertFalse(cache.needsCompaction());
+        assertEquals(kept, cache.get("u1"));
+        assertEquals(churned, cache.get("u2"));
+        assertFalse(new File(FOLDER, String.format(SegmentStore.SEGMENT, 0)).exists());
+
+        // written after the compaction, without a manifest every segment left is read
+        Post post = kept.addPost("after compaction");
+        cache.update(kept, kept.getChange(post));
+        new File(FOLDER, SegmentStore.MANIFEST).delete();
+        cache = new SegmentStore(FOLDER);
+        assertEquals(kept, cache.get("u1"));
+        assertEquals(churned, cache.get("u2"));
+        assertNull(cache.get("u3"));
+    }
+
+    @Test
+    public void compactionReusesSegments() throws IOException {
+        Timeline kept = cacheTimeline("u1", 1);
+        // the segment being written has room, nothing to move
+        cache.compact();
+        assertEquals(SegmentStore.SEGMENT_SIZE, cache.getAllocated());
+        assertTrue(new File(FOLDER, String.format(SegmentStore.SEGMENT, 0)).exists());
+        assertFalse(new File(FOLDER, String.format(SegmentStore.SEGMENT, 1)).exists());
+
+        Timeline churned = new Timeline("u2", 0L);
+        churned.addPost("first");
+        byte[] random = new byte[75_000];
+        new Random(0).nextBytes(random);
+        String big = Base64.getEncoder().encodeToString(random);
+        for (int round = 0; round < 4; ++round) {
+            for (int i = 0; i < 150; ++i) {
+                churned.updatePost(1, big + i);
+                cache.put(churned);
+            }
+            cache.compact();
+        }
+        // deleted segments give their ids to new ones, the files don't pile up under new names
+        for (int segment = 8; segment < 32; ++segment)
+            assertFalse(new File(FOLDER, String.format(SegmentStore.SEGMENT, segment)).exists());
+
+        cache.close();
+        cache = new SegmentStore(FOLDER);
+        assertEquals(kept, cache.get("u1"));
+        assertEquals(churned, cache.get("u2"));
+        // reused ids aren't read in id order without a manifest
+        new File(FOLDER, SegmentStore.MANIFEST).delete();
+        cache = new SegmentStore(FOLDER);
+        assertEquals(kept, cache.get("u1"));
+        assertEquals(churned, cache.get("u2"));
+    }
+
+    @Test
+    public void corruptTimeline() throws IOException {
+        cacheTimeline("u1", 1);
+        Timeline t2 = cacheTimeline("u2", 1);
+        cache.close();
+        // flips the last byte of the first record, the whole timeline of u1
+        File segment = new File(FOLDER, String.format(SegmentStore.SEGMENT, 0));
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(Long.BYTES); // sequence of the segment
+            int end = Long.BYTES + 2 * Integer.BYTES + file.readInt();
+            file.seek(end - 1);
+            int last = file.read();
+            file.seek(end - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        cache = new SegmentStore(FOLDER);
+        assertNull(cache.get("u1"));
+        assertFalse(cache.contains("u1"));
+        assertEquals(t2, cache.get("u2"));
+    }
+
+    @Test
+    public void tornTail() throws IOException {
+        Timeline t1 = cacheTimeline("u1", 2);
+        cache.close();
+
+        // the store isn't closed as if the peer had crashed, the last change is cut short
+        cache = new SegmentStore(FOLDER);
+        Timeline torn = cache.get("u1");
+        Post post = torn.addPost("torn");
+        cache.update(torn, torn.getChange(post));
+        File segment = new File(FOLDER, String.format(SegmentStore.SEGMENT, 0));
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            long end = Long.BYTES;
+            file.seek(end);
+            for (int length; (length = file.readInt()) > 0; end += 2 * Integer.BYTES + length)
+                file.seek(end + 2 * Integer.BYTES + length);
+            file.seek(end - 1);
+            int last = file.read();
+            file.seek(end - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        cache = new SegmentStore(FOLDER);
+        Timeline recovered = cache.get("u1");
+        assertEquals(t1, recovered);
+        Post after = recovered.addPost("after the crash");
+        cache.update(recovered, recovered.getChange(after));
+        cache = new SegmentStore(FOLDER);
+        assertEquals(recovered, cache.get("u1"));
+    }
+
+    @Test
+    public void scanStopsAtBadRecord() throws IOException {
+        cacheTimeline("u1", 1);
+        cacheTimeline("u2", 1);
+        // not closed, every record is scanned. The change of u1 gets a length past the records after it
+        File segment = new File(FOLDER, String.format(SegmentStore.SEGMENT, 0));
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(Long.BYTES);
+            long second = Long.BYTES + 2 * Integer.BYTES + file.readInt();
+            file.seek(second);
+            int length = file.readInt();
+            file.seek(second);
+            file.writeInt(length + 2 * (2 * Integer.BYTES + length));
+        }
+
+        cache = new SegmentStore(FOLDER);
+        assertTrue(cache.get("u1").getPosts().isEmpty()); // the whole timeline before the change
+        assertFalse(cache.contains("u2")); // after the bad record
+        Timeline t3 = cacheTimeline("u3", 1);
+
+        cache = new SegmentStore(FOLDER);
+        assertEquals(t3, cache.get("u3"));
+        assertFalse(cache.contains("u2"));
+        assertTrue(cache.get("u1").getPosts().isEmpty());
+    }
+
+    @Test
+    public void timelineBiggerThanSegment() throws IOException {
+        Timeline timeline = new Timeline("u1", 0L);
+        timeline.addPost("a".repeat(SegmentStore.SEGMENT_SIZE));
+        cache.put(timeline);
+        Timeline small = cacheTimeline("u2", 1);
+
+        assertEquals(timeline, cache.get("u1"));
+        assertEquals(small, cache.get("u2"));
+    }
+
+    @Test
+    public void cachedTimelinesLeaveTheHeap() {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.SYNC, 50, 0L);
+        Timeline foreign = new Timeline("u1", 0L);
+        timelineInfo.addTimeline(foreign);
+        Post post = foreign.addPost("received through a subscription");
+        timelineInfo.putPost(post);
+        timelineInfo.addPost(USERNAME, "own post");
+        timelineInfo.close();
+
+        timelineInfo = new TimelineInfo(USERNAME, Durability.SYNC, 50, 0L);
+        assertEquals(foreign.getPosts(), timelineInfo.getTimeline("u1").getPosts());
+        assertEquals(1, timelineInfo.getOwnTimeline().getPosts().size());
+        // decoded copies are not the stored timeline
+        assertNotSame(timelineInfo.getTimeline("u1"), timelineInfo.getTimeline("u1"));
+        timelineInfo.close();
+    }
+}
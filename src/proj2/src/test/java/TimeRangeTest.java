@@ -0,0 +1,85 @@
+import main.model.timelines.Durability;
+import main.model.timelines.Post;
+import main.model.timelines.Timeline;
+import main.model.timelines.TimelineInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimeRangeTest {
+    private static final String USERNAME = "range_test";
+
+    @AfterEach
+    public void cleanup() {
+        TestUtils.deleteDirectory(new File(TimelineInfo.FOLDER + USERNAME));
+    }
+
+    private static List<Integer> ids(List<Post> posts) {
+        return posts.stream().map(Post::getId).toList();
+    }
+
+    // Posts a few milliseconds apart, so that each one has its own timestamp
+    private static List<Post> addPosts(Timeline timeline, int n) throws InterruptedException {
+        List<Post> posts = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            posts.add(timeline.addPost("post " + i));
+            Thread.sleep(2);
+        }
+        return posts;
+    }
+
+    @Test
+    public void rangeFollowsChanges() throws InterruptedException {
+        Timeline timeline = new Timeline("u1", 0L);
+        List<Post> posts = addPosts(timeline, 5);
+        LocalTime from = posts.get(1).getTimestamp(), to = posts.get(3).getTimestamp();
+
+        assertEquals(List.of(2, 3), ids(timeline.getPosts(from, to, 10)));
+        assertEquals(List.of(2), ids(timeline.getPosts(from, to, 1)));
+        assertTrue(timeline.getPosts(to, from, 10).isEmpty());
+        assertTrue(timeline.getPosts(from, from, 10).isEmpty());
+
+        // changes made after the index was built
+        timeline.deletePost(2);
+        timeline.updatePost(3, "changed");
+        timeline.addPost("late");
+        assertEquals(List.of(3), ids(timeline.getPosts(from, to, 10)));
+        assertEquals("changed", timeline.getPosts(from, to, 10).get(0).getContent());
+        assertEquals(List.of(4, 5, 6), ids(timeline.getPosts(to, LocalTime.MAX, 10)));
+
+        // changes received from the owner
+        Timeline replica = new Timeline("u1", 0L);
+        assertTrue(replica.getPosts(LocalTime.MIN, LocalTime.MAX, 10).isEmpty());
+        replica.applyDelta(timeline.getDelta(0));
+        assertEquals(List.of(1, 3, 4, 5, 6), ids(replica.getPosts(LocalTime.MIN, LocalTime.MAX, 10)));
+    }
+
+    @Test
+    public void rangeOverStoredTimelines() throws InterruptedException {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L);
+        Timeline u1 = new Timeline("u1", 0L), u2 = new Timeline("u2", 0L);
+        List<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) { // interleaved in time
+            posts.addAll(addPosts(u1, 1));
+            posts.addAll(addPosts(u2, 1));
+        }
+        timelineInfo.addTimeline(u1);
+        timelineInfo.addTimeline(u2);
+
+        LocalTime from = posts.get(1).getTimestamp(), to = posts.get(5).getTimestamp();
+        assertEquals(posts.subList(1, 5), timelineInfo.getPosts(Set.of("u1", "u2"), from, to, 10));
+        assertEquals(posts.subList(1, 3), timelineInfo.getPosts(Set.of("u1", "u2", "unknown"), from, to, 2));
+        assertEquals(List.of(posts.get(2), posts.get(4)), timelineInfo.getPosts(Set.of("u1"), from, to, 10));
+        assertEquals(List.of(1, 2, 3), ids(timelineInfo.getPosts("u2", from, LocalTime.MAX, 10)));
+        assertNull(timelineInfo.getPosts("unknown", from, to, 10));
+        timelineInfo.close();
+    }
+}
@@ -0,0 +1,80 @@
+import main.model.timelines.Timeline;
+import main.model.timelines.TimelineCache;
+import main.model.timelines.cache.LruPolicy;
+import main.model.timelines.cache.TinyLfuPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimelineCacheTest {
+    private static final File FOLDER = new File("stored_timelines" + File.separator + "cache_test");
+
+    @AfterEach
+    public void cleanup() {
+        TestUtils.deleteDirectory(FOLDER);
+    }
+
+    @Test
+    public void lruEvictsByBytes() {
+        LruPolicy lru = new LruPolicy(100);
+        assertEquals(List.of(), lru.add("a", 40));
+        assertEquals(List.of(), lru.add("b", 40));
+        lru.access("a");
+        assertEquals(List.of("b"), lru.add("c", 40));
+        assertEquals(List.of("a", "c"), lru.add("d", 90));
+        assertEquals(List.of("e"), lru.add("e", 200)); // bigger than the budget
+    }
+
+    @Test
+    public void tinyLfuKeepsPopular() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(10000);
+        for (int i = 0; i < 10; ++i) {
+            policy.add("hot" + i, 900);
+            for (int j = 0; j < 5; ++j)
+                policy.access("hot" + i);
+        }
+
+        // a burst of lookups made once doesn't evict the popular ones
+        for (int i = 0; i < 100; ++i)
+            policy.add("burst" + i, 900);
+        int kept = 0;
+        for (int i = 0; i < 10; ++i)
+            if (policy.contains("hot" + i))
+                kept++;
+        assertTrue(kept >= 9, "kept " + kept);
+
+        // with plain lru, the burst flushes them
+        LruPolicy lru = new LruPolicy(10000);
+        for (int i = 0; i < 10; ++i)
+            lru.add("hot" + i, 900);
+        for (int i = 0; i < 100; ++i)
+            lru.add("burst" + i, 900);
+        for (int i = 0; i < 10; ++i)
+            assertFalse(lru.contains("hot" + i));
+    }
+
+    @Test
+    public void evictedTimelinesSpill() throws IOException {
+        FOLDER.mkdirs();
+        TimelineCache cache = new TimelineCache(FOLDER, new LruPolicy(3000));
+        for (int i = 0; i < 10; ++i) {
+            Timeline timeline = new Timeline("u" + i, 0L);
+            timeline.addPost("x".repeat(500));
+            cache.put(timeline);
+        }
+
+        assertFalse(cache.isDecoded("u0"));
+        assertTrue(cache.isDecoded("u9"));
+        // evicted from memory, still in the segments
+        assertEquals(1, cache.get("u0").getPosts().size());
+        assertTrue(cache.isDecoded("u0"));
+        assertSame(cache.get("u0"), cache.get("u0"));
+        cache.close();
+    }
+}
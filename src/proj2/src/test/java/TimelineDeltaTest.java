@@ -0,0 +1,103 @@
+import main.controller.message.MessageBuilder;
+import main.model.timelines.MerkleTree;
+import main.model.timelines.Timeline;
+import main.model.timelines.TimelineDelta;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimelineDeltaTest {
+    private Timeline timeline;
+    private Timeline copy;
+
+    @BeforeEach
+    public void setUp() throws IOException, ClassNotFoundException {
+        timeline = new Timeline("u1", 0L);
+        timeline.addPost("first");
+        timeline.addPost("second");
+        timeline.addPost("third");
+        // copy that went through the wire
+        copy = (Timeline) MessageBuilder.objectFromByteArray(MessageBuilder.objectToByteArray(timeline));
+    }
+
+    @Test
+    public void deltaOnlyHasChanges() {
+        timeline.addPost("fourth");
+        timeline.updatePost(1, "first updated");
+        timeline.deletePost(2);
+
+        TimelineDelta delta = timeline.getDelta(copy.getVersion());
+        assertEquals(2, delta.getPosts().size());
+        assertEquals(1, delta.getTombstones().size());
+        assertTrue(delta.getTombstones().containsKey(2));
+
+        assertTrue(copy.applyDelta(delta));
+        assertEquals(timeline, copy);
+        assertEquals(timeline.getVersion(), copy.getVersion());
+    }
+
+    @Test
+    public void emptyDelta() {
+        TimelineDelta delta = timeline.getDelta(copy.getVersion());
+        assertTrue(delta.getPosts().isEmpty());
+        assertTrue(delta.getTombstones().isEmpty());
+    }
+
+    @Test
+    public void deltaWithGap() {
+        timeline.addPost("fourth");
+        long version = timeline.getVersion();
+        timeline.addPost("fifth");
+
+        // copy doesn't have "fourth", changes since it can't be applied
+        assertFalse(copy.applyDelta(timeline.getDelta(version)));
+        assertTrue(copy.applyDelta(timeline.getDelta(copy.getVersion())));
+        assertEquals(timeline, copy);
+    }
+
+    @Test
+    public void olderDeltaKeepsSignature() throws NoSuchAlgorithmException {
+        TimelineDelta stale = timeline.getDelta(copy.getVersion() - 1); // unsigned
+        timeline.addPost("fourth");
+        assertTrue(copy.applyDelta(timeline.getDelta(copy.getVersion())));
+        PrivateKey key = KeyPairGenerator.getInstance("DSA").generateKeyPair().getPrivate();
+        copy.addSignature(key);
+
+        // arrives late, copy is already past it
+        long version = copy.getVersion();
+        assertTrue(copy.applyDelta(stale));
+        assertTrue(copy.hasSignature());
+        assertEquals(version, copy.getVersion());
+    }
+
+    @Test
+    public void merkleBuckets() {
+        assertEquals(timeline.getHash(), copy.getHash());
+        MerkleTree tree = new MerkleTree(List.of(timeline));
+        assertEquals(tree.getRoot(), new MerkleTree(List.of(copy)).getRoot());
+
+        timeline.updatePost(2, "second updated");
+        timeline.deletePost(3);
+        assertNotEquals(tree.getRoot(), new MerkleTree(List.of(timeline)).getRoot());
+        assertEquals(Set.of("u1"), new MerkleTree(List.of(copy)).diff(Map.of("u1", timeline.getHash())));
+
+        // only the buckets of the changed posts differ
+        Set<Integer> buckets = MerkleTree.diffBuckets(timeline.getBucketHashes(), copy.getBucketHashes());
+        assertEquals(Set.of(Timeline.getBucket(2), Timeline.getBucket(3)), buckets);
+
+        TimelineDelta delta = timeline.getBuckets(buckets);
+        assertEquals(1, delta.getPosts().size());
+        assertTrue(copy.applyDelta(delta));
+        assertEquals(timeline, copy);
+        assertEquals(timeline.getHash(), copy.getHash());
+    }
+}
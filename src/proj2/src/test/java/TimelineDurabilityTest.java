@@ -0,0 +1,108 @@
+import main.model.timelines.BackupService;
+import main.model.timelines.Durability;
+import main.model.timelines.Post;
+import main.model.timelines.Timeline;
+import main.model.timelines.TimelineInfo;
+import main.model.timelines.TimelineStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimelineDurabilityTest {
+    private static final String USERNAME = "durability_test";
+    private static final File FOLDER = new File(TimelineInfo.FOLDER + USERNAME);
+    private static final int THREADS = 8;
+    private static final int POSTS = 250; // per thread
+
+    @AfterEach
+    public void cleanup() {
+        TestUtils.deleteDirectory(FOLDER);
+    }
+
+    private Map<String, Timeline> recover() throws IOException, ClassNotFoundException {
+        return new TimelineStore(FOLDER).recover();
+    }
+
+    // Posts from several threads at once, every post is stored once under an id of its own
+    private void postConcurrently(Durability durability) throws Exception {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, durability, 50, 0L);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; ++i) {
+            int thread = i;
+            results.add(executor.submit(() -> {
+                for (int j = 0; j < POSTS; ++j)
+                    timelineInfo.addPost(USERNAME, "post " + j + " from thread " + thread);
+            }));
+        }
+        for (Future<?> result : results)
+            result.get();
+        executor.shutdown();
+        BackupService.Stats stats = timelineInfo.getBackupStats();
+        timelineInfo.close();
+
+        assertTrue(stats.changes() >= THREADS * POSTS);
+        if (durability == Durability.NONE) // changes to the same timeline are merged before they are written
+            assertTrue(stats.appended() <= stats.changes());
+        else
+            assertEquals(stats.changes(), stats.appended());
+        if (durability == Durability.SYNC) { // every post waits for a force, concurrent posts share it
+            assertTrue(stats.commits() >= THREADS * POSTS);
+            assertTrue(stats.forces() >= 1 && stats.forces() <= stats.commits());
+        } else {
+            assertEquals(0, stats.commits());
+        }
+        if (durability == Durability.NONE)
+            assertEquals(0, stats.forces());
+
+        Timeline recovered = recover().get(USERNAME);
+        assertEquals(THREADS * POSTS, recovered.getPosts().size());
+        assertEquals(THREADS * POSTS, recovered.getPosts().stream().map(Post::getId).distinct().count());
+    }
+
+    @Test
+    public void noDurability() throws Exception {
+        postConcurrently(Durability.NONE);
+    }
+
+    @Test
+    public void batchedDurability() throws Exception {
+        postConcurrently(Durability.BATCHED);
+    }
+
+    @Test
+    public void syncDurability() throws Exception {
+        postConcurrently(Durability.SYNC);
+    }
+
+    @Test
+    public void syncedPostsAreStored() throws IOException, ClassNotFoundException {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.SYNC, 50, 0L);
+        timelineInfo.addPost(USERNAME, "first");
+        timelineInfo.addPost(USERNAME, "second");
+
+        // the store is read without closing the timelines, as if the peer had crashed
+        assertEquals(2, recover().get(USERNAME).getPosts().size());
+        timelineInfo.close();
+    }
+
+    @Test
+    public void batchedPostsAreStored() throws IOException, ClassNotFoundException, InterruptedException {
+        TimelineInfo timelineInfo = new TimelineInfo(USERNAME, Durability.BATCHED, 50, 0L);
+        timelineInfo.addPost(USERNAME, "first");
+        // appended right away, forced to disk within the flush interval
+        assertEquals(1, recover().get(USERNAME).getPosts().size());
+        Thread.sleep(100);
+        assertEquals(1, recover().get(USERNAME).getPosts().size());
+        timelineInfo.close();
+    }
+}
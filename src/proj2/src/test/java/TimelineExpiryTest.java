@@ -0,0 +1,98 @@
+import main.model.timelines.Durability;
+import main.model.timelines.Post;
+import main.model.timelines.Timeline;
+import main.model.timelines.TimelineInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.LocalTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimelineExpiryTest {
+    private static final String USERNAME = "expiry_test";
+    private TimelineInfo timelineInfo;
+
+    @BeforeEach
+    public void setUp() {
+        timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L);
+        timelineInfo.setMaxKeepTime(1);
+    }
+
+    @AfterEach
+    public void cleanup() {
+        timelineInfo.close();
+        TestUtils.deleteDirectory(new File(TimelineInfo.FOLDER + USERNAME));
+    }
+
+    @Test
+    public void expireUnchanged() throws InterruptedException {
+        timelineInfo.addTimeline(new Timeline("u1", 0L));
+        Timeline u2 = new Timeline("u2", 0L);
+        timelineInfo.addTimeline(u2);
+
+        Thread.sleep(700);
+        Post post = u2.addPost("keeps u2 alive");
+        timelineInfo.putPost(post);
+        timelineInfo.cleanup();
+        assertTrue(timelineInfo.hasTimeline("u1")); // nothing expired yet
+
+        Thread.sleep(500);
+        timelineInfo.cleanup();
+        assertFalse(timelineInfo.hasTimeline("u1"));
+        assertTrue(timelineInfo.hasTimeline("u2"));
+        assertTrue(timelineInfo.hasTimeline(USERNAME)); // own timeline never expires
+
+        Thread.sleep(700);
+        timelineInfo.cleanup();
+        assertFalse(timelineInfo.hasTimeline("u2"));
+    }
+
+    // Kept for maxKeepTime after the owner's last update, not after we fetched it
+    @Test
+    public void expireFromLastUpdate() throws InterruptedException {
+        timelineInfo.addTimeline(new Timeline("u1", -700_000_000L)); // updated 0.7 s ago
+        timelineInfo.addTimeline(new Timeline("u2", 0L));
+        timelineInfo.cleanup();
+        assertTrue(timelineInfo.hasTimeline("u1"));
+
+        Thread.sleep(500);
+        timelineInfo.cleanup();
+        assertFalse(timelineInfo.hasTimeline("u1"));
+        assertTrue(timelineInfo.hasTimeline("u2"));
+    }
+
+    @Test
+    public void expireAfterRestart() throws InterruptedException {
+        timelineInfo.addTimeline(new Timeline("u1", 0L));
+        timelineInfo.close();
+
+        timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, 0L);
+        timelineInfo.setMaxKeepTime(1);
+        assertTrue(timelineInfo.hasTimeline("u1"));
+        Thread.sleep(1100);
+        timelineInfo.cleanup();
+        assertFalse(timelineInfo.hasTimeline("u1"));
+    }
+
+    @Test
+    public void expireAcrossMidnight() throws InterruptedException {
+        // clocks set so that u1 was updated just before midnight and the peer restarts just after it
+        long toMidnight = Math.floorMod(Duration.between(LocalTime.now(), LocalTime.MIDNIGHT).toNanos(),
+                Duration.ofDays(1).toNanos());
+        timelineInfo.addTimeline(new Timeline("u1", toMidnight - 500_000_000L));
+        timelineInfo.close();
+
+        timelineInfo = new TimelineInfo(USERNAME, Durability.NONE, 50, toMidnight);
+        timelineInfo.setMaxKeepTime(1);
+        timelineInfo.cleanup();
+        assertTrue(timelineInfo.hasTimeline("u1"));
+        Thread.sleep(700);
+        timelineInfo.cleanup();
+        assertFalse(timelineInfo.hasTimeline("u1"));
+    }
+}
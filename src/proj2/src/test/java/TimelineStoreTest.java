@@ -0,0 +1,184 @@
+import main.model.timelines.Durability;
+import main.model.timelines.Post;
+import main.model.timelines.StoreRecord;
+import main.model.timelines.Timeline;
+import main.model.timelines.TimelineInfo;
+import main.model.timelines.TimelineStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.TestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimelineStoreTest {
+    private static final File FOLDER = new File("stored_timelines" + File.separator + "store_test");
+    private TimelineStore store;
+    private Timeline timeline;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        FOLDER.mkdirs();
+        store = new TimelineStore(FOLDER);
+        timeline = new Timeline("u1", 0L);
+        store.append(StoreRecord.timeline(timeline));
+    }
+
+    @AfterEach
+    public void cleanup() throws IOException {
+        store.close();
+        TestUtils.deleteDirectory(FOLDER);
+    }
+
+    private void addPost(String content) throws IOException {
+        Post post = timeline.addPost(content);
+        store.append(StoreRecord.change(timeline.getChange(post)));
+    }
+
+    @Test
+    public void replayLog() throws IOException, ClassNotFoundException {
+        addPost("first");
+        addPost("second");
+        timeline.updatePost(1, "first updated");
+        store.append(StoreRecord.change(timeline.getChange(timeline.getPost(1))));
+        timeline.deletePost(2);
+        store.append(StoreRecord.change(timeline.getDeletion(2)));
+        store.close();
+
+        Map<String, Timeline> recovered = new TimelineStore(FOLDER).recover();
+        assertEquals(timeline, recovered.get("u1"));
+        assertEquals(timeline.getVersion(), recovered.get("u1").getVersion());
+    }
+
+    @Test
+    public void appendCostsTheChange() throws IOException {
+        for (int i = 0; i < 100; ++i)
+            addPost("post number " + i);
+        long size = new File(FOLDER, TimelineStore.LOG).length();
+        addPost("one more");
+        long appended = new File(FOLDER, TimelineStore.LOG).length() - size;
+
+        // a single post doesn't rewrite the other 100
+        assertTrue(appended < size / 10);
+    }
+
+    @Test
+    public void snapshotAndRemove() throws IOException, ClassNotFoundException {
+        addPost("first");
+        Timeline other = new Timeline("u2", 0L);
+        store.append(StoreRecord.timeline(other));
+        store.compact(List.of(timeline, other));
+        assertEquals(0, new File(FOLDER, TimelineStore.LOG).length());
+
+        addPost("after snapshot");
+        store.append(StoreRecord.remove("u2"));
+        store.close();
+
+        Map<String, Timeline> recovered = new TimelineStore(FOLDER).recover();
+        assertEquals(timeline, recovered.get("u1"));
+        assertFalse(recovered.containsKey("u2"));
+    }
+
+    @Test
+    public void coalescedChanges() throws IOException, ClassNotFoundException {
+        // changes made within a flush interval become a single record
+        StoreRecord pending = StoreRecord.change(timeline.getChange(timeline.addPost("first")));
+        pending = pending.merge(StoreRecord.change(timeline.getChange(timeline.addPost("second"))));
+        timeline.updatePost(1, "first updated");
+        pending = pending.merge(StoreRecord.change(timeline.getChange(timeline.getPost(1))));
+        timeline.deletePost(2);
+        pending = pending.merge(StoreRecord.change(timeline.getDeletion(2)));
+        store.append(pending);
+        store.close();
+
+        Map<String, Timeline> recovered = new TimelineStore(FOLDER).recover();
+        assertEquals(timeline, recovered.get("u1"));
+
+        // whole timeline replaces every previous change
+        StoreRecord whole = StoreRecord.timeline(timeline);
+        assertSame(whole, pending.merge(whole));
+        assertSame(whole, whole.merge(pending));
+    }
+
+    // Crashes in the middle of the last record, or corrupts it, and recovers what came before it
+    private void recoverDamagedTail(boolean torn) throws IOException, ClassNotFoundException {
+        addPost("first");
+        store.close();
+        File log = new File(FOLDER, TimelineStore.LOG);
+        long good = log.length();
+        Timeline expected = new TimelineStore(FOLDER).recover().get("u1");
+
+        store = new TimelineStore(FOLDER);
+        addPost("second");
+        store.close();
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            if (torn) {
+                file.setLength(file.length() - 3);
+            } else {
+                file.seek(file.length() - 1);
+                int last = file.read();
+                file.seek(file.length() - 1);
+                file.write(last ^ 0xFF);
+            }
+        }
+
+        store = new TimelineStore(FOLDER);
+        Map<String, Timeline> recovered = store.recover();
+        assertEquals(expected, recovered.get("u1"));
+        assertEquals(good, log.length());
+
+        // records appended after the cut are read back
+        timeline = recovered.get("u1");
+        addPost("after the crash");
+        store.close();
+        assertEquals(timeline, new TimelineStore(FOLDER).recover().get("u1"));
+    }
+
+    @Test
+    public void tornTail() throws IOException, ClassNotFoundException {
+        recoverDamagedTail(true);
+    }
+
+    @Test
+    public void corruptTail() throws IOException, ClassNotFoundException {
+        recoverDamagedTail(false);
+    }
+
+    // Files saved by the peer when each timeline had a file of its own, before the log
+    @Test
+    public void importLegacyFiles() throws IOException, URISyntaxException {
+        File folder = new File(TimelineInfo.FOLDER + "legacy_test");
+        folder.mkdirs();
+        File fixtures = new File(getClass().getResource("legacy_timelines").toURI());
+        for (File fixture : fixtures.listFiles())
+            Files.copy(fixture.toPath(), new File(folder, fixture.getName()).toPath());
+
+        try {
+            TimelineInfo timelineInfo = new TimelineInfo("legacy_test", Durability.NONE, 50, 0L);
+            Timeline own = timelineInfo.getOwnTimeline();
+            assertEquals(List.of("first", "third"), own.getPosts().stream().map(Post::getContent).toList());
+            assertEquals(List.of(1, 3), own.getPosts().stream().map(Post::getId).toList());
+            assertEquals("hello from u7", timelineInfo.getTimeline("u7").getPost(1).getContent());
+            assertFalse(new File(folder, "legacy_test").exists());
+            assertFalse(new File(folder, "u7").exists());
+
+            // kept by the current store from now on
+            timelineInfo.addPost("legacy_test", "fourth");
+            timelineInfo.close();
+            timelineInfo = new TimelineInfo("legacy_test", Durability.NONE, 50, 0L);
+            assertEquals(List.of(1, 3, 4), timelineInfo.getOwnTimeline().getPosts().stream().map(Post::getId).toList());
+            assertEquals("hello from u7", timelineInfo.getTimeline("u7").getPost(1).getContent());
+            timelineInfo.close();
+        } finally {
+            TestUtils.deleteDirectory(folder);
+        }
+    }
+}
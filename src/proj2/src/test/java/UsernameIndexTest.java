@@ -0,0 +1,49 @@
+import main.model.UsernameIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UsernameIndexTest {
+
+    @Test
+    public void prefixLookups() {
+        UsernameIndex index = new UsernameIndex();
+        for (String username : List.of("alice", "alicia", "ali", "bob", "bobby", "al", "carol"))
+            index.add(username);
+        index.add("alice"); // known already
+        assertEquals(7, index.size());
+
+        assertEquals(List.of("al", "ali", "alice", "alicia"), index.withPrefix("al", 10));
+        assertEquals(List.of("alice", "alicia"), index.withPrefix("alic", 10));
+        assertEquals(List.of("al", "ali"), index.withPrefix("a", 2));
+        assertEquals(List.of("bob", "bobby"), index.withPrefix("bo", 10));
+        assertTrue(index.withPrefix("alx", 10).isEmpty());
+        assertTrue(index.withPrefix("alicex", 10).isEmpty());
+        assertEquals(7, index.withPrefix("", 10).size());
+        assertTrue(index.contains("ali"));
+        assertFalse(index.contains("alic"));
+    }
+
+    @Test
+    public void removeKeepsTheRest() {
+        UsernameIndex index = new UsernameIndex();
+        for (String username : List.of("alice", "alicia", "ali", "bob"))
+            index.add(username);
+
+        index.remove("ali");
+        index.remove("alic"); // never added
+        assertEquals(List.of("alice", "alicia"), index.withPrefix("al", 10));
+        index.remove("alicia");
+        assertEquals(List.of("alice"), index.withPrefix("ali", 10));
+        assertFalse(index.contains("alicia"));
+        index.remove("alice");
+        assertTrue(index.withPrefix("a", 10).isEmpty());
+        assertEquals(List.of("bob"), index.withPrefix("", 10));
+        assertEquals(1, index.size());
+
+        index.add("alice");
+        assertEquals(List.of("alice", "bob"), index.withPrefix("", 10));
+    }
+}